@@ -0,0 +1,463 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+// Benchmarks for the hot paths, run with: java Benchmarks [name prefix ...]
+//
+// Micro benchmarks report ns/op over 10 measured iterations after 5 warmup iterations, macro benchmarks report the ms
+// of one full GHS run in the simulator. -Dghs.bench.out=<file> also writes the results as CSV. The 1M node run needs
+// about 6 GB of heap and is only run when asked for by name. bench/baseline.csv holds a reference run.
+public class Benchmarks {
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 10;
+    private static final PrintStream OUT = System.out;
+    private static volatile long sink; // keeps results alive so the JIT cannot drop the measured work
+
+    private final List<String> results = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException {
+        List<String> only = Arrays.asList(args);
+        Benchmarks b = new Benchmarks();
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int c) {}
+        }));
+        try {
+            b.run(only);
+        } finally {
+            System.setOut(OUT);
+        }
+        String file = System.getProperty("ghs.bench.out");
+        if(file != null) {
+            try (PrintWriter w = new PrintWriter(new FileWriter(file))) {
+                w.println("benchmark,unit,score,error");
+                b.results.forEach(w::println);
+            }
+        }
+    }
+
+    private void run(List<String> only) {
+        Random random = new Random(42);
+        Weight[] weights = new Weight[1024];
+        for(int i = 0; i < weights.length; i++) {
+            int low = random.nextInt(1000000);
+            weights[i] = new Weight(random.nextInt(100), low, low + 1 + random.nextInt(1000));
+        }
+        micro(only, "weight.compareTo", weights.length, () -> {
+            long r = 0;
+            for(int i = 0; i < weights.length; i++) {
+                r += weights[i].compareTo(weights[(i + 1) & 1023]);
+            }
+            return r;
+        });
+        micro(only, "weight.equals", weights.length, () -> {
+            long r = 0;
+            for(int i = 0; i < weights.length; i++) {
+                r += weights[i].equals(weights[(i + 1) & 1023]) ? 1 : 0;
+            }
+            return r;
+        });
+        micro(only, "weight.hashCode", weights.length, () -> {
+            long r = 0;
+            for(Weight w : weights) {
+                r += w.hashCode();
+            }
+            return r;
+        });
+
+        int degree = 1000;
+        int[] neighbours = new int[degree];
+        int[] edgeWeights = new int[degree];
+        for(int i = 0; i < degree; i++) {
+            neighbours[i] = i + 1;
+            edgeWeights[i] = random.nextInt(1000000);
+        }
+        Node hub = new Node(0, neighbours, edgeWeights, new StubTransport());
+        int[] lookups = new int[4096];
+        for(int i = 0; i < lookups.length; i++) {
+            lookups[i] = 1 + random.nextInt(degree);
+        }
+        micro(only, "node.identifyEdge", lookups.length, () -> {
+            long r = 0;
+            for(int n : lookups) {
+                r += hub.identifyEdge(n);
+            }
+            return r;
+        });
+
+        // A Test from another fragment is answered with an Accept straight away
+        StubTransport testTransport = new StubTransport();
+        Node tested = new Node(0, neighbours, edgeWeights, testTransport);
+        tested.spontaneousStart();
+        Weight otherFragment = new Weight(7, 1, 2);
+        micro(only, "handler.receiveTest", lookups.length, () -> {
+            for(int n : lookups) {
+                tested.receiveTest(n, 0, otherFragment);
+            }
+            return testTransport.sent;
+        });
+
+        // A Report from a child only updates the best weight seen so far. The Initiate makes neighbour 1 the parent, so
+        // reports come from the others.
+        StubTransport reportTransport = new StubTransport();
+        Node reported = new Node(0, neighbours, edgeWeights, reportTransport);
+        reported.spontaneousStart();
+        reported.receiveInitiate(1, 1, new Weight(edgeWeights[0], 0, 1), NodeState.FIND);
+        int[] children = new int[lookups.length];
+        for(int i = 0; i < children.length; i++) {
+            children[i] = 2 + random.nextInt(degree - 1);
+        }
+        micro(only, "handler.receiveReport", children.length, () -> {
+            for(int i = 0; i < children.length; i++) {
+                reported.receiveReport(children[i], weights[i & 1023]);
+            }
+            return reportTransport.sent;
+        });
+
+        // A Report is the most common message that carries a weight
+        Message report = Message.report(1, weights[0]);
+        ByteBuffer frames = ByteBuffer.allocateDirect(64 * WireCodec.size(report));
+        micro(only, "wire.encode", 64, () -> {
+            frames.clear();
+            for(int i = 0; i < 64; i++) {
+                WireCodec.encode(2, report, frames);
+            }
+            return frames.position();
+        });
+        micro(only, "wire.decode", 64, () -> {
+            frames.position(0);
+            long r = 0;
+            for(int i = 0; i < 64; i++) {
+                r += WireCodec.decode(frames).from;
+            }
+            return r;
+        });
+        nioLoopback(only, "wire.nio.loopback", 200000);
+        rmiLoopback(only, "wire.rmi.loopback", 1, 5000);
+        rmiLoopback(only, "wire.rmi.loopback.batch64", 64, 200000);
+
+        macro(only, "ghs.sim.1k", 1000, 3, 5);
+        macro(only, "ghs.sim.100k", 100000, 1, 1);
+        if(only.contains("ghs.sim.1m")) {
+            macro(only, "ghs.sim.1m", 1000000, 0, 1);
+        }
+        boruvka(only, "boruvka.100k", 100000);
+        boruvka(only, "boruvka.1m", 1000000);
+    }
+
+    private void micro(List<String> only, String name, int opsPerCall, LongSupplier body) {
+        if(!selected(only, name)) {
+            return;
+        }
+        for(int i = 0; i < WARMUP; i++) {
+            measure(body);
+        }
+        double[] scores = new double[ITERATIONS];
+        for(int i = 0; i < ITERATIONS; i++) {
+            scores[i] = (double) measure(body) / opsPerCall;
+        }
+        report(name, "ns/op", scores);
+    }
+
+    // Runs calls of body for about 100 ms and returns the ns per call
+    private static long measure(LongSupplier body) {
+        long calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink += body.getAsLong();
+            calls++;
+            elapsed = System.nanoTime() - start;
+        } while(elapsed < 100_000_000L);
+        return elapsed / calls;
+    }
+
+    private void macro(List<String> only, String name, int nodes, int warmup, int iterations) {
+        if(!selected(only, name)) {
+            return;
+        }
+        for(int i = 0; i < warmup; i++) {
+            simulate(nodes, i);
+        }
+        double[] scores = new double[iterations];
+        long messages = 0;
+        for(int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            messages = simulate(nodes, 1000 + i);
+            scores[i] = (System.nanoTime() - start) / 1e6;
+        }
+        report(name, "ms/run", scores);
+        OUT.println("    " + messages + " messages in the last run");
+    }
+
+    // The in-process reference on the same kind of graph, the throughput a single machine can reach
+    private void boruvka(List<String> only, String name, int nodes) {
+        if(!selected(only, name)) {
+            return;
+        }
+        int[][][] adjacency = randomGraph(nodes, 2 * nodes, 0);
+        EdgeList graph = new EdgeList();
+        for(int id = 0; id < nodes; id++) {
+            for(int i = 0; i < adjacency[0][id].length; i++) {
+                if(id < adjacency[0][id][i]) {
+                    graph.add(id, adjacency[0][id][i], adjacency[1][id][i]);
+                }
+            }
+        }
+        adjacency = null;
+        for(int i = 0; i < WARMUP; i++) {
+            sink += Boruvka.mst(graph).getTotalWeight();
+        }
+        double[] scores = new double[ITERATIONS];
+        for(int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sink += Boruvka.mst(graph).getTotalWeight();
+            scores[i] = (System.nanoTime() - start) / 1e6;
+        }
+        report(name, "ms/run", scores);
+    }
+
+    // Accepts from a node on one host to a node on another, both in this JVM and talking over loopback
+    private void nioLoopback(List<String> only, String name, int messages) {
+        if(!selected(only, name)) {
+            return;
+        }
+        List<String> hosts = Arrays.asList("localhost:47101", "localhost:47102");
+        NioTransport sender = new NioTransport(hosts.get(0), hosts);
+        NioTransport receiver = new NioTransport(hosts.get(1), hosts);
+        CountingNode counter = new CountingNode();
+        try {
+            sender.start(new StubTransport(), new int[] {0});
+            receiver.start((from, to, m) -> counter.received.incrementAndGet(), new int[] {1});
+            sender.open(0, Arrays.asList(1));
+            double[] scores = new double[ITERATIONS];
+            for(int i = -WARMUP; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                long target = counter.received.get() + messages;
+                for(int k = 0; k < messages; k++) {
+                    sender.send(0, 1, Message.accept(0));
+                }
+                counter.await(target);
+                if(i >= 0) {
+                    scores[i] = (double) (System.nanoTime() - start) / messages;
+                }
+            }
+            report(name, "ns/msg", scores);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    // The same over RMI, one synchronous call per message or per batch like RmiTransport makes
+    private void rmiLoopback(List<String> only, String name, int batchSize, int messages) {
+        if(!selected(only, name)) {
+            return;
+        }
+        CountingNode counter = new CountingNode();
+        List<Message> batch = new ArrayList<>();
+        for(int i = 0; i < batchSize; i++) {
+            batch.add(Message.accept(0));
+        }
+        try {
+            INode stub = (INode) UnicastRemoteObject.exportObject(counter, 0);
+            double[] scores = new double[ITERATIONS];
+            for(int i = -WARMUP; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                for(int k = 0; k < messages; k += batchSize) {
+                    if(batchSize == 1) {
+                        stub.receiveAccept(0);
+                    } else {
+                        stub.receiveBatch(batch);
+                    }
+                }
+                if(i >= 0) {
+                    scores[i] = (double) (System.nanoTime() - start) / messages;
+                }
+            }
+            report(name, "ns/msg", scores);
+            UnicastRemoteObject.unexportObject(counter, true);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Full GHS in the simulator on a random connected graph with about 3 edges per node
+    private static long simulate(int nodes, long seed) {
+        Metrics.GLOBAL.reset();
+        Simulator simulator = new Simulator(seed, LinkDelay.uniform(Dispatcher.NETWORK_DELAY));
+        int[][][] adjacency = randomGraph(nodes, 2 * nodes, seed);
+        for(int id = 0; id < nodes; id++) {
+            simulator.add(new Node(id, adjacency[0][id], adjacency[1][id], simulator));
+            adjacency[0][id] = null;
+            adjacency[1][id] = null;
+        }
+        return simulator.run();
+    }
+
+    // A random spanning tree plus random extra edges, as per-node neighbour and weight arrays
+    static int[][][] randomGraph(int nodes, int extraEdges, long seed) {
+        Random random = new Random(seed);
+        int edges = nodes - 1 + extraEdges;
+        int[] us = new int[edges];
+        int[] vs = new int[edges];
+        int[] degree = new int[nodes];
+        for(int i = 0; i < edges; i++) {
+            int u = i < nodes - 1 ? i + 1 : random.nextInt(nodes);
+            int v = i < nodes - 1 ? random.nextInt(u) : random.nextInt(nodes);
+            if(u == v) {
+                v = (v + 1) % nodes;
+            }
+            us[i] = u;
+            vs[i] = v;
+            degree[u]++;
+            degree[v]++;
+        }
+        int[][] neighbours = new int[nodes][];
+        int[][] weights = new int[nodes][];
+        for(int id = 0; id < nodes; id++) {
+            neighbours[id] = new int[degree[id]];
+            weights[id] = new int[degree[id]];
+            degree[id] = 0;
+        }
+        for(int i = 0; i < edges; i++) {
+            int w = random.nextInt(Integer.MAX_VALUE);
+            neighbours[us[i]][degree[us[i]]] = vs[i];
+            weights[us[i]][degree[us[i]]++] = w;
+            neighbours[vs[i]][degree[vs[i]]] = us[i];
+            weights[vs[i]][degree[vs[i]]++] = w;
+        }
+        // Parallel edges would give a node the same neighbour twice, keep only the first
+        for(int id = 0; id < nodes; id++) {
+            int[] n = neighbours[id];
+            int[] order = new int[n.length];
+            int kept = 0;
+            outer:
+            for(int i = 0; i < n.length; i++) {
+                for(int k = 0; k < kept; k++) {
+                    if(n[order[k]] == n[i]) {
+                        continue outer;
+                    }
+                }
+                order[kept++] = i;
+            }
+            if(kept < n.length) {
+                int[] uniqueNeighbours = new int[kept];
+                int[] uniqueWeights = new int[kept];
+                for(int k = 0; k < kept; k++) {
+                    uniqueNeighbours[k] = n[order[k]];
+                    uniqueWeights[k] = weights[id][order[k]];
+                }
+                neighbours[id] = uniqueNeighbours;
+                weights[id] = uniqueWeights;
+            }
+        }
+        return new int[][][] {neighbours, weights};
+    }
+
+    private void report(String name, String unit, double[] scores) {
+        double mean = Arrays.stream(scores).average().orElse(0);
+        double variance = Arrays.stream(scores).map(s -> (s - mean) * (s - mean)).sum() / Math.max(1, scores.length - 1);
+        double error = Math.sqrt(variance);
+        OUT.println(String.format("%-24s %12.3f +- %.3f %s", name, mean, error, unit));
+        results.add(String.format("%s,%s,%.3f,%.3f", name, unit, mean, error));
+    }
+
+    private static boolean selected(List<String> only, String name) {
+        if(only.isEmpty()) {
+            return true;
+        }
+        for(String prefix : only) {
+            if(name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Counts the messages that reach it
+    private static class CountingNode implements INode {
+        final AtomicLong received = new AtomicLong();
+
+        void await(long count) {
+            while(received.get() < count) {
+                LockSupport.parkNanos(50000); // the selector thread may need this core
+            }
+        }
+
+        @Override
+        public void receiveInitiate(Integer id, Integer fragmentLevel, Weight FN, NodeState NS) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void receiveTest(Integer id, Integer l, Weight FN) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void receiveAccept(Integer from) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void receiveReject(Integer from) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void receiveReport(Integer from, Weight w) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void receiveConnect(Integer from, Integer value) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void receiveChangeRoot(Integer from) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void receiveHalt(Integer from) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void receiveBatch(List<Message> messages) {
+            received.addAndGet(messages.size());
+        }
+    }
+
+    // Counts what a node sends and runs its mailbox on the calling thread
+    private static class StubTransport implements Transport {
+        long sent = 0;
+
+        @Override
+        public void send(Integer from, Integer to, Message message) {
+            sent++;
+        }
+
+        @Override
+        public Executor scheduler() {
+            return Runnable::run;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+// Parallel Boruvka on a fork-join pool, the in-process reference for the distributed GHS run. Every round each
+// component picks its lightest outgoing edge in the same order as Weight, so the result is the same unique minimum
+// spanning tree (a forest if the graph is not connected) that GHS finds.
+public class Boruvka {
+    private final EdgeList graph;
+    private final UnionFind components;
+    private final AtomicIntegerArray best; // per component root the lightest edge seen this round, -1 for none
+    private final boolean[] inTree; // each edge is written by at most one thread
+
+    private Boruvka(EdgeList graph) {
+        this.graph = graph;
+        this.components = new UnionFind(graph.nodeCount());
+        this.best = new AtomicIntegerArray(graph.nodeCount());
+        this.inTree = new boolean[graph.size()];
+    }
+
+    public static SpanningTree mst(EdgeList graph) {
+        return mst(graph, ForkJoinPool.commonPool());
+    }
+
+    public static SpanningTree mst(EdgeList graph, ForkJoinPool pool) {
+        Boruvka b = new Boruvka(graph);
+        // Parallel streams run in the pool of the task that starts them
+        return pool.submit(b::run).join();
+    }
+
+    private SpanningTree run() {
+        int nodes = graph.nodeCount();
+        IntStream.range(0, nodes).parallel().forEach(r -> best.set(r, -1));
+        int[] live = IntStream.range(0, graph.size()).toArray();
+        while(live.length > 0) {
+            int[] edges = live;
+            IntStream.of(edges).parallel().forEach(e -> {
+                int ru = components.find(graph.source(e));
+                int rv = components.find(graph.target(e));
+                if(ru != rv) {
+                    offer(ru, e);
+                    offer(rv, e);
+                }
+            });
+            // Two components may pick the same edge, only the first union adds it
+            IntStream.range(0, nodes).parallel().forEach(r -> {
+                int e = best.get(r);
+                if(e >= 0) {
+                    best.set(r, -1);
+                    if(components.union(graph.source(e), graph.target(e))) {
+                        inTree[e] = true;
+                    }
+                }
+            });
+            live = IntStream.of(edges).parallel()
+                    .filter(e -> components.find(graph.source(e)) != components.find(graph.target(e)))
+                    .toArray();
+        }
+        List<Edge> tree = new ArrayList<>();
+        for(int e = 0; e < inTree.length; e++) {
+            if(inTree[e]) {
+                tree.add(graph.edge(e));
+            }
+        }
+        return new SpanningTree(tree);
+    }
+
+    private void offer(int root, int edge) {
+        while(true) {
+            int current = best.get(root);
+            if(current >= 0 && graph.compare(edge, current) >= 0) {
+                return;
+            }
+            if(best.compareAndSet(root, current, edge)) {
+                return;
+            }
+        }
+    }
+
+    // Lock-free union-find. A root is only ever linked below a root with a higher index, so the links cannot form a
+    // cycle, and find halves the paths it walks.
+    static class UnionFind {
+        private final AtomicIntegerArray parent;
+
+        UnionFind(int size) {
+            this.parent = new AtomicIntegerArray(size);
+            for(int i = 0; i < size; i++) {
+                parent.set(i, i);
+            }
+        }
+
+        int find(int x) {
+            while(true) {
+                int p = parent.get(x);
+                if(p == x) {
+                    return x;
+                }
+                int grandparent = parent.get(p);
+                if(p != grandparent) {
+                    parent.compareAndSet(x, p, grandparent);
+                }
+                x = grandparent;
+            }
+        }
+
+        // Returns false if a and b were already in the same set
+        boolean union(int a, int b) {
+            while(true) {
+                a = find(a);
+                b = find(b);
+                if(a == b) {
+                    return false;
+                }
+                int low = Math.min(a, b);
+                int high = Math.max(a, b);
+                if(parent.compareAndSet(low, low, high)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Append-only file of the snapshot records of the nodes of one JVM. A record is its length, a CRC32 of the rest, the
+// snapshot, the node id and the state as the node encoded it. A crash may cut the last records short; they fail the
+// length or CRC check and are cut off when the log is opened again.
+public class CheckpointLog implements Closeable {
+    private static final int MAX_RECORD = 1 << 28;
+
+    private final FileChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(1 << 20);
+    private final CRC32 crc = new CRC32();
+    private final Map<Integer, Integer> records = new HashMap<>(); // snapshot to the number of records of it
+    private int lastSnapshot; // the highest snapshot in the log, 0 for none
+
+    public CheckpointLog(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long end = scan((snapshot, nodeId, state) -> counted(snapshot));
+        this.channel.truncate(end);
+        this.channel.position(end);
+    }
+
+    public int getLastSnapshot() {
+        return lastSnapshot;
+    }
+
+    // The highest snapshot that has a record of every one of the given number of nodes, 0 for none
+    public int latestComplete(int nodes) {
+        int latest = 0;
+        for(Map.Entry<Integer, Integer> e : records.entrySet()) {
+            if(e.getValue() == nodes && e.getKey() > latest) {
+                latest = e.getKey();
+            }
+        }
+        return latest;
+    }
+
+    // The records of one snapshot by node id, each positioned at the state
+    public Map<Integer, ByteBuffer> read(int snapshot) throws IOException {
+        Map<Integer, ByteBuffer> states = new HashMap<>();
+        long end = channel.position();
+        scan((s, nodeId, state) -> {
+            if(s == snapshot) {
+                states.put(nodeId, state);
+            }
+        });
+        channel.position(end);
+        return states;
+    }
+
+    // Returns how many records the snapshot has now
+    public synchronized int append(int snapshot, int nodeId, ByteBuffer state) throws IOException {
+        ByteBuffer ids = ByteBuffer.allocate(8);
+        ids.putInt(snapshot).putInt(nodeId).flip();
+        crc.reset();
+        crc.update(ids.duplicate());
+        crc.update(state.duplicate());
+        int size = 8 + 8 + state.remaining();
+        if(out.remaining() < size) {
+            drain();
+        }
+        ByteBuffer to = out.remaining() < size ? ByteBuffer.allocate(size) : out; // larger than the buffer
+        to.putInt(size - 8).putInt((int) crc.getValue()).put(ids).put(state);
+        if(to != out) {
+            to.flip();
+            while(to.hasRemaining()) {
+                channel.write(to);
+            }
+        }
+        return counted(snapshot);
+    }
+
+    // Writes out what is buffered and waits until it is on disk
+    public synchronized void flush() throws IOException {
+        drain();
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private void drain() throws IOException {
+        out.flip();
+        while(out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    private int counted(int snapshot) {
+        lastSnapshot = Math.max(lastSnapshot, snapshot);
+        return records.merge(snapshot, 1, Integer::sum);
+    }
+
+    private interface RecordVisitor {
+        void record(int snapshot, int nodeId, ByteBuffer state);
+    }
+
+    // Reads the whole records from the start of the file and returns where the last of them ends
+    private long scan(RecordVisitor visitor) throws IOException {
+        channel.position(0);
+        // Not closed, that would close the channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        long end = 0;
+        while(true) {
+            byte[] body;
+            int checksum;
+            try {
+                int length = in.readInt();
+                if(length < 8 || length > MAX_RECORD) {
+                    break;
+                }
+                checksum = in.readInt();
+                body = new byte[length];
+                in.readFully(body);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(body, 0, body.length);
+            if((int) crc.getValue() != checksum) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(body);
+            visitor.record(record.getInt(), record.getInt(), record);
+            end += 8 + body.length;
+        }
+        return end;
+    }
+}
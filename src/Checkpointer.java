@@ -0,0 +1,154 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Takes consistent snapshots of a running GHS (Chandy and Lamport) so that after a crash the run resumes from the last
+// one instead of starting over from SLEEPING. Every interval the nodes of this JVM start the next snapshot; the
+// markers they send over every link make all other nodes, on other hosts too, record it as well. The records go to
+// the CheckpointLog of this JVM, which is forced to disk once all of its nodes have written theirs.
+//
+// This needs FIFO links, which GHS needs anyway. A snapshot only covers the GHS run, not the repairs of a finished
+// tree or other sessions.
+public class Checkpointer implements Closeable {
+    private static final int PATIENCE = 10; // intervals a snapshot may take before the next one starts anyway
+
+    private final CheckpointLog log;
+    private final List<Node> nodes;
+    private final long interval; // ms between snapshots
+    private int next; // the last snapshot started, numbers go on from those already in the log
+    private int waited; // intervals skipped while the last snapshot was still running
+    private volatile int complete; // the latest snapshot all nodes of this JVM have written
+    private int restored; // the snapshot the nodes resumed from, 0 if they started from scratch
+    private ScheduledExecutorService timer;
+    private boolean closed;
+
+    public Checkpointer(CheckpointLog log, Collection<Node> nodes, long interval) {
+        this.log = log;
+        this.nodes = new ArrayList<>(nodes);
+        this.interval = interval;
+        this.next = log.getLastSnapshot();
+        for(Node n : this.nodes) {
+            n.checkpointTo(this, log.getLastSnapshot());
+        }
+    }
+
+    // ghs.checkpoint is the log of this JVM and ghs.checkpoint.interval the ms between snapshots (default 1000).
+    // ghs.checkpoint.restore is latest (default) to resume from the newest snapshot that all nodes of this JVM wrote,
+    // none to start over, or a number; several hosts have to resume from the same one. Returns null if ghs.checkpoint
+    // is not set.
+    public static Checkpointer fromSystemProperties(Collection<Node> nodes) throws IOException {
+        String file = System.getProperty("ghs.checkpoint");
+        if(file == null) {
+            return null;
+        }
+        CheckpointLog log = new CheckpointLog(Paths.get(file));
+        Checkpointer checkpointer = new Checkpointer(log, nodes, Long.getLong("ghs.checkpoint.interval", 1000L));
+        String restore = System.getProperty("ghs.checkpoint.restore", "latest");
+        if("latest".equals(restore)) {
+            checkpointer.restore(log.latestComplete(nodes.size()));
+        } else if(!"none".equals(restore)) {
+            checkpointer.restore(Integer.parseInt(restore));
+        }
+        return checkpointer;
+    }
+
+    // Must be called before the nodes start
+    public void restore(int snapshot) throws IOException {
+        if(snapshot == 0) {
+            return;
+        }
+        Map<Integer, ByteBuffer> records = log.read(snapshot);
+        for(Node n : nodes) {
+            ByteBuffer record = records.get(n.getId());
+            if(record == null) {
+                throw new RuntimeException("Snapshot " + snapshot + " has no record of node " + n.getId());
+            }
+            n.restore(record);
+        }
+        this.restored = snapshot;
+        this.complete = snapshot;
+    }
+
+    // Starts a snapshot every interval on a timer thread, until all nodes of this JVM have halted
+    public void start() {
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer.scheduleAtFixedRate(() -> {
+            if(!initiate()) {
+                this.timer.shutdown();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // Starts the next snapshot on every node of this JVM, so that parts of the graph no marker reaches take it too.
+    // Returns false once all of them have halted. Called by one thread at a time.
+    public boolean initiate() {
+        boolean running = false;
+        for(Node n : nodes) {
+            running |= !n.isHalted();
+        }
+        if(!running) {
+            return false;
+        } else if(next > complete && ++waited < PATIENCE) {
+            // A snapshot costs a marker each way over every edge, starting more while one is slow only piles them up.
+            // One that never completes here, because another host skipped it, is given up on after a while.
+            return true;
+        }
+        waited = 0;
+        int snapshot = ++next;
+        for(Node n : nodes) {
+            n.checkpoint(snapshot);
+        }
+        return true;
+    }
+
+    synchronized void recorded(int snapshot, int nodeId, ByteBuffer state) {
+        if(closed) {
+            return;
+        }
+        try {
+            if(log.append(snapshot, nodeId, state) == nodes.size()) {
+                log.flush();
+                complete = Math.max(complete, snapshot);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public int getComplete() {
+        return complete;
+    }
+
+    public int getRestored() {
+        return restored;
+    }
+
+    @Override
+    public synchronized void close() {
+        if(timer != null) {
+            timer.shutdownNow();
+        }
+        closed = true;
+        try {
+            log.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
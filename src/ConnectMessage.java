@@ -1,11 +1,13 @@
 public class ConnectMessage {
     final Integer value;
     final Integer from;
-    final Edge edge;
+    final int edge; // index of the edge in the receiving node
+    final long deferredAt; // Metrics clock when the message was queued
 
-    public ConnectMessage(Integer from, Integer value, Edge e) {
+    public ConnectMessage(Integer from, Integer value, int e) {
         this.from = from;
         this.value = value;
         this.edge = e;
+        this.deferredAt = Metrics.GLOBAL.now();
     }
 }
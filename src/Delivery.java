@@ -0,0 +1,5 @@
+import java.rmi.RemoteException;
+
+public interface Delivery {
+    void deliverTo(INode receiver) throws RemoteException;
+}
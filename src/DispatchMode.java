@@ -0,0 +1,5 @@
+public enum DispatchMode {
+    POOL,       // bounded pool of platform threads, the delay is slept on a pool thread
+    VIRTUAL,    // one virtual thread per delivery step, falls back to POOL before Java 21
+    SCHEDULED   // the delay is a timer on a scheduled executor, no thread sleeps
+}
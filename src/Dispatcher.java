@@ -0,0 +1,211 @@
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Dispatcher {
+    public static final int NETWORK_DELAY = 150; // upper bound of the simulated network delay in ms
+
+    private final DispatchMode mode;
+    private final int networkDelay;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler; // only used in SCHEDULED mode
+    private final Map<Long, Link> links = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger(); // dispatched sends that have not run yet
+
+    public Dispatcher(DispatchMode mode, int threads, int networkDelay) {
+        this.networkDelay = networkDelay;
+        ThreadFactory factory = daemonThreads("dispatch-");
+        if(mode == DispatchMode.SCHEDULED) {
+            this.scheduler = Executors.newScheduledThreadPool(threads, factory);
+            this.executor = this.scheduler;
+        } else {
+            ExecutorService virtual = mode == DispatchMode.VIRTUAL ? newVirtualExecutor() : null;
+            if(mode == DispatchMode.VIRTUAL && virtual == null) {
+                System.out.println("Virtual threads are not available, dispatching on a pool instead");
+                mode = DispatchMode.POOL;
+            }
+            this.scheduler = null;
+            this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(threads, factory);
+        }
+        this.mode = mode;
+    }
+
+    // Reads ghs.dispatch (pool, virtual or scheduled), ghs.dispatch.threads and ghs.network.delay
+    public static Dispatcher fromSystemProperties() {
+        DispatchMode mode = DispatchMode.valueOf(System.getProperty("ghs.dispatch", "scheduled").toUpperCase());
+        int threads = Integer.getInteger("ghs.dispatch.threads", 2 * Runtime.getRuntime().availableProcessors());
+        int delay = Integer.getInteger("ghs.network.delay", NETWORK_DELAY);
+        return new Dispatcher(mode, threads, delay);
+    }
+
+    public DispatchMode getMode() {
+        return mode;
+    }
+
+    // Messages dispatched on the same link (from, to) are delivered in the order they were dispatched
+    public void dispatch(Integer from, Integer to, Runnable send) {
+        dispatchRetrying(from, to, () -> {
+            send.run();
+            return 0;
+        });
+    }
+
+    // Like dispatch, for a send that may not be able to go out yet. While it waits to be tried again the link is
+    // off the executor, so only the messages behind it on the same link wait.
+    public void dispatchRetrying(Integer from, Integer to, Attempt send) {
+        long key = ((long) from << 32) | (to & 0xffffffffL);
+        pending.incrementAndGet();
+        links.computeIfAbsent(key, k -> new Link()).enqueue(send);
+    }
+
+    public interface Attempt {
+        // Returns 0 once the message went out, else after how many ms to try it again
+        long run();
+    }
+
+    // Waits at most timeout ms until every dispatched send has run, returns whether they all did
+    public boolean awaitIdle(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while(pending.get() > 0) {
+            if(System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Stops delivering, the sends that have not run yet are dropped
+    public void shutdown() {
+        executor.shutdownNow();
+        links.values().forEach(Link::discard);
+    }
+
+    private long randomDelayNanos() {
+        if(networkDelay <= 0) {
+            return 0;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextInt(networkDelay));
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // A FIFO queue of pending sends for one direction of one edge. Every message gets its own random delay,
+    // but is never delivered before a message that was dispatched earlier on the same link.
+    private class Link {
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private long lastDue = 0;
+        private boolean active = false;
+
+        synchronized void enqueue(Attempt send) {
+            long due = Math.max(System.nanoTime() + randomDelayNanos(), lastDue);
+            lastDue = due;
+            pending.add(new Pending(send, due));
+            if(!active) {
+                active = true;
+                schedule(due, false);
+            }
+        }
+
+        // A retry always waits off the executor, a first try only in SCHEDULED mode
+        private void schedule(long due, boolean retry) {
+            try {
+                if(scheduler != null) {
+                    scheduler.schedule(this::step, due - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } else if(retry) {
+                    CompletableFuture.delayedExecutor(due - System.nanoTime(), TimeUnit.NANOSECONDS, executor)
+                            .execute(this::step);
+                } else {
+                    executor.execute(this::step);
+                }
+            } catch (RejectedExecutionException e) {
+                discard();
+            }
+        }
+
+        // Shut down, the rest of the link is never sent
+        synchronized void discard() {
+            Dispatcher.this.pending.addAndGet(-pending.size());
+            pending.clear();
+            active = false;
+        }
+
+        // Delivers the head of the queue, then hands the link back to the executor so links share threads fairly
+        private void step() {
+            Pending head;
+            synchronized (this) {
+                head = pending.peek();
+            }
+            if(head == null) {
+                return; // discarded meanwhile
+            }
+            long retry = 0;
+            try {
+                long wait = head.due - System.nanoTime();
+                if(wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                retry = head.send.run();
+            } catch (InterruptedException e) {
+                // Shut down before the message was due, it is dropped but still leaves the link
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                if(retry > 0 && pending.peek() == head) {
+                    head.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retry);
+                    schedule(head.due, true);
+                    return;
+                } else if(pending.peek() == head) {
+                    pending.poll();
+                    Dispatcher.this.pending.decrementAndGet();
+                }
+                if(pending.isEmpty()) {
+                    active = false;
+                } else {
+                    schedule(pending.peek().due, false);
+                }
+            }
+        }
+    }
+
+    private static class Pending {
+        final Attempt send;
+        long due;
+
+        Pending(Attempt send, long due) {
+            this.send = send;
+            this.due = due;
+        }
+    }
+}
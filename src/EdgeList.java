@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// A whole graph as three parallel int arrays, for the in-process algorithms that need every edge at once
+public class EdgeList {
+    private int[] sources = new int[1024];
+    private int[] targets = new int[1024];
+    private int[] weights = new int[1024];
+    private int size = 0;
+    private int nodeCount = 0; // highest node id + 1
+
+    public static EdgeList read(Path file) throws IOException {
+        EdgeList edges = new EdgeList();
+        GraphLoader.scan(file, edges::add);
+        return edges;
+    }
+
+    // Self loops are never part of a spanning tree and are left out
+    public void add(int u, int v, int w) {
+        if(u == v) {
+            return;
+        }
+        if(size == sources.length) {
+            int capacity = size * 2;
+            sources = Arrays.copyOf(sources, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+        }
+        sources[size] = u;
+        targets[size] = v;
+        weights[size] = w;
+        size++;
+        nodeCount = Math.max(nodeCount, Math.max(u, v) + 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public int source(int edge) {
+        return sources[edge];
+    }
+
+    public int target(int edge) {
+        return targets[edge];
+    }
+
+    public int weight(int edge) {
+        return weights[edge];
+    }
+
+    // Orders two edges like their Weights, without creating them
+    public int compare(int e, int f) {
+        return Weight.compare(weights[e], Math.min(sources[e], targets[e]), Math.max(sources[e], targets[e]),
+                weights[f], Math.min(sources[f], targets[f]), Math.max(sources[f], targets[f]));
+    }
+
+    public Edge edge(int e) {
+        int low = Math.min(sources[e], targets[e]);
+        int high = Math.max(sources[e], targets[e]);
+        return new Edge(low, high, new Weight(weights[e], low, high));
+    }
+}
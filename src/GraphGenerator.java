@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+// Seeded synthetic graphs for load tests. The same topology, size and seed always give the same graph.
+//
+// Every edge gets a distinct weight: the edge's index in the generation order, scrambled by a seeded bijection on
+// 31 bits. Rings, grids and complete graphs are generated node by node, so a node's edges are built right when it
+// is needed. Random and power-law graphs are generated twice into GraphLoader, once for the degrees and once for
+// the adjacency; only the power-law generator keeps an int per edge end while it runs, to pick targets by degree.
+public class GraphGenerator implements GraphLoader.EdgeSource {
+    public enum Topology {
+        RING, // node i is connected to i - 1 and i + 1
+        GRID, // nodes in rows of ceil(sqrt(n)), connected to their right and lower neighbour
+        RANDOM, // G(n, m): n * degree / 2 uniformly random edges, parallel edges are dropped by the loader
+        POWER_LAW, // preferential attachment: every new node links to degree / 2 earlier nodes, picked by degree
+        COMPLETE // every pair of nodes, at most 46340 nodes
+    }
+
+    private static final long MASK = 0x7fffffffL;
+
+    private final Topology topology;
+    private final int nodes;
+    private final int degree; // average degree of RANDOM and POWER_LAW
+    private final long seed;
+
+    public GraphGenerator(Topology topology, int nodes, int degree, long seed) {
+        if(nodes < 3) {
+            throw new IllegalArgumentException("A generated graph needs at least 3 nodes");
+        } else if(topology == Topology.COMPLETE && nodes > 46340) {
+            throw new IllegalArgumentException("A complete graph of " + nodes + " nodes has too many edges");
+        } else if((long) nodes * Math.max(2, degree) / 2 > MASK) {
+            throw new IllegalArgumentException("Too many edges to give each a distinct weight");
+        }
+        this.topology = topology;
+        this.nodes = nodes;
+        this.degree = Math.max(2, degree);
+        this.seed = seed;
+    }
+
+    // Reads ghs.gen (the topology), ghs.gen.nodes, ghs.gen.degree and ghs.seed. Returns null if ghs.gen is not set.
+    public static GraphGenerator fromSystemProperties() {
+        String topology = System.getProperty("ghs.gen");
+        if(topology == null) {
+            return null;
+        }
+        return new GraphGenerator(Topology.valueOf(topology.toUpperCase().replace('-', '_')),
+                Integer.getInteger("ghs.gen.nodes", 1000), Integer.getInteger("ghs.gen.degree", 6),
+                Long.getLong("ghs.seed", 0L));
+    }
+
+    public int nodeCount() {
+        return nodes;
+    }
+
+    // Hands every owned node with its edges to the sink, in increasing id order
+    public void nodes(IntPredicate owned, GraphLoader.NodeSink sink) throws IOException {
+        if(topology == Topology.RANDOM || topology == Topology.POWER_LAW) {
+            GraphLoader.load(this, owned, sink);
+            return;
+        }
+        for(int id = 0; id < nodes; id++) {
+            if(owned.test(id)) {
+                node(id, sink);
+            }
+        }
+    }
+
+    private void node(int id, GraphLoader.NodeSink sink) {
+        int[] neighbourIds;
+        int[] weights;
+        if(topology == Topology.RING) {
+            int previous = (id + nodes - 1) % nodes;
+            int next = (id + 1) % nodes;
+            neighbourIds = new int[] {previous, next};
+            weights = new int[] {weight(previous), weight(id)}; // edge i runs from i to i + 1
+        } else if(topology == Topology.GRID) {
+            int width = gridWidth();
+            int count = 0;
+            neighbourIds = new int[4];
+            weights = new int[4];
+            if(id % width > 0) {
+                neighbourIds[count] = id - 1;
+                weights[count++] = weight(2L * (id - 1));
+            }
+            if(id % width < width - 1 && id + 1 < nodes) {
+                neighbourIds[count] = id + 1;
+                weights[count++] = weight(2L * id);
+            }
+            if(id >= width) {
+                neighbourIds[count] = id - width;
+                weights[count++] = weight(2L * (id - width) + 1);
+            }
+            if(id + width < nodes) {
+                neighbourIds[count] = id + width;
+                weights[count++] = weight(2L * id + 1);
+            }
+            neighbourIds = Arrays.copyOf(neighbourIds, count);
+            weights = Arrays.copyOf(weights, count);
+        } else {
+            neighbourIds = new int[nodes - 1];
+            weights = new int[nodes - 1];
+            for(int v = 0, i = 0; v < nodes; v++) {
+                if(v != id) {
+                    neighbourIds[i] = v;
+                    weights[i++] = weight((long) Math.min(id, v) * nodes + Math.max(id, v));
+                }
+            }
+        }
+        sink.node(id, neighbourIds, weights);
+    }
+
+    // Streams every edge once, in the same order and with the same weights as nodes uses
+    @Override
+    public void scan(GraphLoader.EdgeVisitor visitor) throws IOException {
+        switch (topology) {
+            case RING:
+                for(int i = 0; i < nodes; i++) {
+                    visitor.edge(i, (i + 1) % nodes, weight(i));
+                }
+                break;
+            case GRID:
+                int width = gridWidth();
+                for(int i = 0; i < nodes; i++) {
+                    if(i % width < width - 1 && i + 1 < nodes) {
+                        visitor.edge(i, i + 1, weight(2L * i));
+                    }
+                    if(i + width < nodes) {
+                        visitor.edge(i, i + width, weight(2L * i + 1));
+                    }
+                }
+                break;
+            case RANDOM:
+                random(visitor);
+                break;
+            case POWER_LAW:
+                powerLaw(visitor);
+                break;
+            case COMPLETE:
+                for(int u = 0; u < nodes; u++) {
+                    for(int v = u + 1; v < nodes; v++) {
+                        visitor.edge(u, v, weight((long) u * nodes + v));
+                    }
+                }
+                break;
+        }
+    }
+
+    private void random(GraphLoader.EdgeVisitor visitor) throws IOException {
+        Random random = new Random(seed);
+        long edges = (long) nodes * degree / 2;
+        for(long k = 0; k < edges; k++) {
+            int u = random.nextInt(nodes);
+            int v = random.nextInt(nodes - 1);
+            if(v >= u) {
+                v++; // uniform over the other nodes
+            }
+            visitor.edge(u, v, weight(k));
+        }
+    }
+
+    // Barabasi-Albert: a target is drawn from the end points of all earlier edges, so in proportion to its degree
+    private void powerLaw(GraphLoader.EdgeVisitor visitor) throws IOException {
+        Random random = new Random(seed);
+        int perNode = degree / 2;
+        int[] ends = new int[(int) Math.min(Integer.MAX_VALUE - 8, 2L * perNode * nodes)];
+        int size = 0;
+        long k = 0;
+        for(int t = 1; t < nodes; t++) {
+            for(int i = 0; i < Math.min(t, perNode); i++) {
+                int target = size == 0 ? 0 : ends[random.nextInt(size)];
+                visitor.edge(t, target, weight(k++));
+                ends[size++] = t;
+                ends[size++] = target;
+            }
+        }
+    }
+
+    private int gridWidth() {
+        return (int) Math.ceil(Math.sqrt(nodes));
+    }
+
+    // A seeded bijection on 31 bits: adding, multiplying by an odd number and xor-shifting right are all invertible
+    private int weight(long index) {
+        long x = (index + seed) & MASK;
+        x = (x * 0x5DEECE66DL) & MASK;
+        x ^= x >>> 13;
+        x = (x * 0x2545F491L) & MASK;
+        x ^= x >>> 16;
+        return (int) x;
+    }
+
+    // Writes a generated graph as a binary edge list, so other tools and runs can load it
+    public static void main(String[] args) throws IOException {
+        if(args.length != 5) {
+            System.out.println("Usage: GraphGenerator <ring|grid|random|power_law|complete> <nodes> <degree> <seed> " +
+                    "<binary edge list>");
+            return;
+        }
+        GraphGenerator generator = new GraphGenerator(Topology.valueOf(args[0].toUpperCase().replace('-', '_')),
+                Integer.parseInt(args[1]), Integer.parseInt(args[2]), Long.parseLong(args[3]));
+        GraphLoader.writeBinary(generator, Paths.get(args[4]));
+    }
+}
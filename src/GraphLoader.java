@@ -0,0 +1,275 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+// Streams weighted edge lists from memory-mapped files into per-node adjacency arrays.
+//
+// Text files have one edge "u v w" per line, '#' starts a comment. Binary files start with the magic "GHSE", a
+// version int and the edge count as a long, followed by (u, v, w) int triples, all big endian.
+//
+// The file is scanned twice: once to count the degree of every owned node and once to fill one flat array of
+// neighbours and weights. Nodes that are not owned, for example because another host runs them, take no memory.
+public class GraphLoader {
+    public static final int MAGIC = 0x47485345; // "GHSE"
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final long CHUNK = 1L << 30; // bytes mapped at once, a mapping is limited to 2 GB
+
+    public interface EdgeVisitor {
+        void edge(int u, int v, int w) throws IOException;
+    }
+
+    public interface NodeSink {
+        void node(int id, int[] neighbourIds, int[] weights);
+    }
+
+    // Anything that can produce the same edges more than once, such as a file or a seeded generator
+    public interface EdgeSource {
+        void scan(EdgeVisitor visitor) throws IOException;
+    }
+
+    public static void load(Path file, IntPredicate owned, NodeSink sink) throws IOException {
+        load(visitor -> scan(file, visitor), owned, sink);
+    }
+
+    // Hands every owned node with at least one edge to the sink, in increasing id order. Self loops are skipped and of
+    // parallel edges only the lightest is kept.
+    public static void load(EdgeSource source, IntPredicate owned, NodeSink sink) throws IOException {
+        // Pass 1: degrees
+        int[][] degree = {new int[1024]};
+        source.scan((u, v, w) -> {
+            if(u < 0 || v < 0) {
+                throw new IOException("Negative node id in edge " + u + " " + v);
+            }
+            if(u == v) {
+                return;
+            }
+            if(owned.test(u)) {
+                degree[0] = count(degree[0], u);
+            }
+            if(owned.test(v)) {
+                degree[0] = count(degree[0], v);
+            }
+        });
+        int[] offsets = new int[degree[0].length + 1];
+        long total = 0;
+        for(int i = 0; i < degree[0].length; i++) {
+            offsets[i] = (int) total;
+            total += degree[0][i];
+            if(total > Integer.MAX_VALUE - 8) {
+                throw new IOException("Too many edges for one JVM, partition the graph over more hosts");
+            }
+        }
+        offsets[degree[0].length] = (int) total;
+        degree[0] = null;
+
+        // Pass 2: adjacency, packed per entry as (neighbour, weight) so a node's slice can be sorted in place
+        long[] adjacency = new long[(int) total];
+        int[] fill = Arrays.copyOf(offsets, offsets.length - 1);
+        source.scan((u, v, w) -> {
+            if(u == v) {
+                return;
+            }
+            if(owned.test(u)) {
+                adjacency[fill[u]++] = pack(v, w);
+            }
+            if(owned.test(v)) {
+                adjacency[fill[v]++] = pack(u, w);
+            }
+        });
+
+        for(int id = 0; id < offsets.length - 1; id++) {
+            int from = offsets[id];
+            int to = offsets[id + 1];
+            if(from == to) {
+                continue;
+            }
+            Arrays.sort(adjacency, from, to); // by neighbour, then by weight
+            int unique = 0;
+            for(int i = from; i < to; i++) {
+                if(i == from || neighbour(adjacency[i]) != neighbour(adjacency[i - 1])) {
+                    unique++;
+                }
+            }
+            int[] neighbourIds = new int[unique];
+            int[] weights = new int[unique];
+            int k = 0;
+            for(int i = from; i < to; i++) {
+                if(i == from || neighbour(adjacency[i]) != neighbour(adjacency[i - 1])) {
+                    neighbourIds[k] = neighbour(adjacency[i]);
+                    weights[k] = weight(adjacency[i]);
+                    k++;
+                }
+            }
+            sink.node(id, neighbourIds, weights);
+        }
+    }
+
+    // Calls the visitor for every edge in the file, text or binary
+    public static void scan(Path file, EdgeVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size >= HEADER_SIZE) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if(header.getInt() == MAGIC) {
+                    if(header.getInt() != VERSION) {
+                        throw new IOException("Unsupported edge list version in " + file);
+                    }
+                    scanBinary(channel, header.getLong(), visitor);
+                    return;
+                }
+            }
+            scanText(channel, size, visitor);
+        }
+    }
+
+    private static void scanBinary(FileChannel channel, long edges, EdgeVisitor visitor) throws IOException {
+        long recordsPerChunk = CHUNK / 12;
+        long position = HEADER_SIZE;
+        long left = edges;
+        while(left > 0) {
+            long records = Math.min(left, recordsPerChunk);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, records * 12);
+            for(long i = 0; i < records; i++) {
+                visitor.edge(buffer.getInt(), buffer.getInt(), buffer.getInt());
+            }
+            position += records * 12;
+            left -= records;
+        }
+    }
+
+    private static void scanText(FileChannel channel, long size, EdgeVisitor visitor) throws IOException {
+        long position = 0;
+        int[] fields = new int[3];
+        while(position < size) {
+            long length = Math.min(CHUNK, size - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            boolean last = position + length == size;
+            int lineStart = 0;
+            int end = (int) length;
+            // Only complete lines are parsed, a line cut off by the end of the mapping is read with the next one
+            for(int i = 0; i < end; i++) {
+                if(buffer.get(i) == '\n') {
+                    parseLine(buffer, lineStart, i, fields, visitor);
+                    lineStart = i + 1;
+                }
+            }
+            if(last && lineStart < end) {
+                parseLine(buffer, lineStart, end, fields, visitor);
+                lineStart = end;
+            }
+            if(lineStart == 0 && !last) {
+                throw new IOException("Line longer than " + CHUNK + " bytes at offset " + position);
+            }
+            position += lineStart;
+        }
+    }
+
+    private static void parseLine(MappedByteBuffer buffer, int from, int to, int[] fields, EdgeVisitor visitor)
+            throws IOException {
+        int count = 0;
+        int i = from;
+        while(i < to && count < 3) {
+            byte b = buffer.get(i);
+            if(b == '#') {
+                break;
+            } else if(b == ' ' || b == '\t' || b == '\r' || b == ',') {
+                i++;
+                continue;
+            }
+            boolean negative = b == '-';
+            if(negative) {
+                i++;
+            }
+            long value = 0;
+            int digits = 0;
+            while(i < to && (b = buffer.get(i)) >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                digits++;
+                i++;
+                if(value > Integer.MAX_VALUE) {
+                    throw new IOException("Number out of range in edge line: " + line(buffer, from, to));
+                }
+            }
+            if(digits == 0) {
+                throw new IOException("Malformed edge line: " + line(buffer, from, to));
+            }
+            fields[count++] = (int) (negative ? -value : value);
+        }
+        if(count == 0) {
+            return; // blank or comment line
+        } else if(count == 2) {
+            fields[2] = 1; // unweighted edge
+        } else if(count != 3) {
+            throw new IOException("Malformed edge line: " + line(buffer, from, to));
+        }
+        visitor.edge(fields[0], fields[1], fields[2]);
+    }
+
+    // Converts any edge list the loader reads into the binary format
+    public static void writeBinary(Path source, Path target) throws IOException {
+        writeBinary(visitor -> scan(source, visitor), target);
+    }
+
+    public static void writeBinary(EdgeSource source, Path target) throws IOException {
+        long[] edges = {0};
+        source.scan((u, v, w) -> edges[0]++);
+        try (OutputStream file = Files.newOutputStream(target);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(edges[0]);
+            source.scan((u, v, w) -> {
+                out.writeInt(u);
+                out.writeInt(v);
+                out.writeInt(w);
+            });
+        }
+    }
+
+    private static int[] count(int[] degree, int id) {
+        if(id >= degree.length) {
+            degree = Arrays.copyOf(degree, Math.max(id + 1, degree.length * 2));
+        }
+        degree[id]++;
+        return degree;
+    }
+
+    private static String line(MappedByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[Math.min(to - from, 80)];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes);
+    }
+
+    // The weight goes in with its sign bit flipped, so sorting the longs sorts equal neighbours on signed weight
+    private static long pack(int neighbour, int weight) {
+        return ((long) neighbour << 32) | ((weight ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+
+    private static int neighbour(long entry) {
+        return (int) (entry >>> 32);
+    }
+
+    private static int weight(long entry) {
+        return (int) entry ^ Integer.MIN_VALUE;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2) {
+            System.out.println("Usage: GraphLoader <edge list> <binary edge list>");
+            return;
+        }
+        writeBinary(Paths.get(args[0]), Paths.get(args[1]));
+    }
+}
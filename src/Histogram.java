@@ -0,0 +1,61 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free histogram of non-negative durations in power of two buckets: bucket b counts the values below 2^b that
+// did not fit in bucket b - 1. Percentiles are reported as the upper bound of their bucket, so they are off by at
+// most a factor of two.
+public class Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        value = Math.max(0, value); // clocks of different hosts may disagree a little
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    // The smallest bucket bound that at least the fraction q of the values is below
+    public long percentile(double q) {
+        long total = count.sum();
+        long seen = 0;
+        for(int b = 0; b < 64; b++) {
+            seen += buckets.get(b);
+            if(total > 0 && seen >= q * total) {
+                return b == 0 ? 0 : Math.min(1L << b, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public Map<String, Long> summary() {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        long n = count.sum();
+        summary.put("count", n);
+        summary.put("mean", n == 0 ? 0 : sum.sum() / n);
+        summary.put("p50", percentile(0.5));
+        summary.put("p90", percentile(0.9));
+        summary.put("p99", percentile(0.99));
+        summary.put("max", max.get());
+        return summary;
+    }
+
+    public void reset() {
+        for(int b = 0; b < 64; b++) {
+            buckets.set(b, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+}
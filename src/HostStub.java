@@ -0,0 +1,58 @@
+import java.rmi.RemoteException;
+import java.util.List;
+
+// Looks like the stub of a single node, but sends every call through the endpoint of the host that runs the node
+public class HostStub implements INode {
+    private final IHost host;
+    private final Integer nodeId;
+
+    public HostStub(IHost host, Integer nodeId) {
+        this.host = host;
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public void receiveInitiate(Integer id, Integer fragmentLevel, Weight FN, NodeState NS) throws RemoteException {
+        host.deliver(nodeId, Message.initiate(id, fragmentLevel, FN, NS));
+    }
+
+    @Override
+    public void receiveTest(Integer id, Integer l, Weight FN) throws RemoteException {
+        host.deliver(nodeId, Message.test(id, l, FN));
+    }
+
+    @Override
+    public void receiveAccept(Integer from) throws RemoteException {
+        host.deliver(nodeId, Message.accept(from));
+    }
+
+    @Override
+    public void receiveReject(Integer from) throws RemoteException {
+        host.deliver(nodeId, Message.reject(from));
+    }
+
+    @Override
+    public void receiveReport(Integer from, Weight w) throws RemoteException {
+        host.deliver(nodeId, Message.report(from, w));
+    }
+
+    @Override
+    public void receiveConnect(Integer from, Integer value) throws RemoteException {
+        host.deliver(nodeId, Message.connect(from, value));
+    }
+
+    @Override
+    public void receiveChangeRoot(Integer from) throws RemoteException {
+        host.deliver(nodeId, Message.changeRoot(from));
+    }
+
+    @Override
+    public void receiveHalt(Integer from) throws RemoteException {
+        host.deliver(nodeId, Message.halt(from));
+    }
+
+    @Override
+    public void receiveBatch(List<Message> messages) throws RemoteException {
+        host.deliverBatch(nodeId, messages);
+    }
+}
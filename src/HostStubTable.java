@@ -0,0 +1,42 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Resolves nodes through the hosts bound in the registries instead of one binding per node
+public class HostStubTable extends StubTable {
+    private final Map<Integer, IHost> routes = new ConcurrentHashMap<>(); // node id to the host that runs it
+
+    public HostStubTable(List<String> registryHosts) {
+        super(registryHosts);
+    }
+
+    @Override
+    protected INode lookup(Registry registry, Integer nodeId) throws RemoteException, NotBoundException {
+        IHost host = routes.get(nodeId);
+        if(host == null) {
+            // One pass over the hosts of this registry learns the routes to all of their nodes
+            for(String name : registry.list()) {
+                if(name.startsWith(NodeHost.BINDING_PREFIX)) {
+                    IHost h = (IHost) registry.lookup(name);
+                    for(int id : h.hostedIds()) {
+                        routes.put(id, h);
+                    }
+                }
+            }
+            host = routes.get(nodeId);
+        }
+        if(host == null) {
+            throw new NotBoundException("No host runs node " + nodeId);
+        }
+        return new HostStub(host, nodeId);
+    }
+
+    @Override
+    public void invalidate(Integer nodeId, INode stale) {
+        super.invalidate(nodeId, stale);
+        routes.remove(nodeId); // the host may have been restarted or the node moved
+    }
+}
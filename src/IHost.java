@@ -0,0 +1,12 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+// The one remote endpoint of a JVM that hosts many nodes, messages are routed to the local node by id
+public interface IHost extends Remote {
+    int[] hostedIds() throws RemoteException;
+
+    void deliver(Integer to, Message message) throws RemoteException;
+
+    void deliverBatch(Integer to, List<Message> messages) throws RemoteException;
+}
@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface INode extends Remote {
     void receiveInitiate(Integer id, Integer fragmentLevel, Weight FN, NodeState NS) throws RemoteException;
@@ -15,4 +16,8 @@ public interface INode extends Remote {
     void receiveConnect(Integer from, Integer value) throws RemoteException;
 
     void receiveChangeRoot(Integer from) throws RemoteException;
+
+    void receiveHalt(Integer from) throws RemoteException;
+
+    void receiveBatch(List<Message> messages) throws RemoteException;
 }
@@ -0,0 +1,37 @@
+// Open addressing map from an int key to a non-negative int index, without boxing. Sized once, it never grows.
+public class IntIndexMap {
+    private final int[] keys;
+    private final int[] indices; // index + 1, so 0 marks an empty slot
+    private final int mask;
+
+    public IntIndexMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1; // load factor at most 0.5
+        this.keys = new int[capacity];
+        this.indices = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public void put(int key, int index) {
+        int slot = slotOf(key);
+        this.keys[slot] = key;
+        this.indices[slot] = index + 1;
+    }
+
+    // Returns the index stored for key, or -1 if there is none
+    public int get(int key) {
+        return this.indices[slotOf(key)] - 1;
+    }
+
+    private int slotOf(int key) {
+        int slot = mix(key) & mask;
+        while(indices[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,18 @@
+import java.util.Random;
+
+// The virtual delay, in ms, of one message on the link (from, to). Must only draw randomness from the given Random.
+public interface LinkDelay {
+    long delay(Integer from, Integer to, Random random);
+
+    static LinkDelay constant(long delay) {
+        return (from, to, random) -> delay;
+    }
+
+    static LinkDelay uniform(int maxDelay) {
+        return (from, to, random) -> random.nextInt(maxDelay);
+    }
+
+    static LinkDelay exponential(double meanDelay) {
+        return (from, to, random) -> (long) (-meanDelay * Math.log(1 - random.nextDouble()));
+    }
+}
@@ -0,0 +1,41 @@
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+// Delivers messages between nodes in the same JVM straight into their mailboxes, without RMI or a network delay
+public class LocalTransport implements Transport {
+    private final Executor executor;
+    private final Map<Integer, Node> nodes = new ConcurrentHashMap<>();
+
+    public LocalTransport() {
+        this(Mailbox.SHARED_EXECUTOR);
+    }
+
+    public LocalTransport(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void register(Node node) {
+        nodes.put(node.getId(), node);
+    }
+
+    @Override
+    public Executor scheduler() {
+        return executor;
+    }
+
+    @Override
+    public void send(Integer from, Integer to, Message message) {
+        Node receiver = nodes.get(to);
+        if(receiver == null) {
+            throw new RuntimeException("Node " + to + " is not registered with this transport");
+        }
+        try {
+            message.deliverTo(receiver);
+        } catch (RemoteException e) {
+            // a local node never throws this
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Runs posted tasks one at a time and in posting order, borrowing a thread from a shared executor while there is work.
+// Any thread may post, the queue is a lock-free linked list where producers only swap the tail and the single
+// consumer owns the head.
+public class Mailbox {
+    private static final int BATCH = 64; // tasks run before the thread is handed back to the executor
+
+    // Default scheduler for mailboxes, FIFO so that mailboxes take turns
+    public static final Executor SHARED_EXECUTOR = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+
+    private final AtomicReference<Cell> tail;
+    private Cell head; // only touched by the thread that currently drains
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Executor executor;
+
+    public Mailbox(Executor executor) {
+        this.executor = executor;
+        this.head = new Cell(null);
+        this.tail = new AtomicReference<>(this.head);
+    }
+
+    public void post(Runnable task) {
+        Cell cell = new Cell(task);
+        tail.getAndSet(cell).next = cell;
+        if(scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private Runnable poll() {
+        Cell next = head.next;
+        if(next == null) {
+            return null; // empty, or a producer has swapped the tail but not linked its cell yet
+        }
+        head = next;
+        Runnable task = next.task;
+        next.task = null;
+        return task;
+    }
+
+    private void drain() {
+        for(int i = 0; i < BATCH; i++) {
+            Runnable task = poll();
+            if(task == null) {
+                break;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        scheduled.set(false);
+        if(tail.get() != head && scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private static class Cell {
+        Runnable task;
+        volatile Cell next;
+
+        Cell(Runnable task) {
+            this.task = task;
+        }
+    }
+}
@@ -1,53 +1,470 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.rmi.AlreadyBoundException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
 
 public class Main {
 
-    public static void main(String[] args) throws RemoteException, AlreadyBoundException {
+    public static void main(String[] args) throws IOException, AlreadyBoundException {
 //        if (System.getSecurityManager() == null) {
 //            System.setSecurityManager(new SecurityManager());
 //        }
-        Registry registry = LocateRegistry.getRegistry("0.0.0.0",1099);
-        Node one = new Node(1,  List.of(2, 4));
-        Node two = new Node(2, List.of(1, 3));
-        Node three = new Node(3, List.of(2, 4));
-        Node four = new Node(4, List.of(3, 1));
-
-        INode stub1 = (INode) UnicastRemoteObject.exportObject(one, 0);
-        INode stub2 = (INode) UnicastRemoteObject.exportObject(two, 0);
-        INode stub3 = (INode) UnicastRemoteObject.exportObject(three, 0);
-        INode stub4 = (INode) UnicastRemoteObject.exportObject(four, 0);
-
-        registry.bind("p1", stub1);
-        registry.bind("p2", stub2);
-        registry.bind("p3", stub3);
-        registry.bind("p4", stub4);
-
-        new Thread(one).start();
-        new Thread(two).start();
-        new Thread(three).start();
-        new Thread(four).start();
-
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        // ghs.transport selects how the nodes talk to each other: rmi (default), host, nio, local or sim. boruvka
+        // computes the tree in this JVM without running GHS at all. Except with rmi, ghs.sessions runs more
+        // executions over the same nodes afterwards. With local and sim, ghs.updates names a file of edge updates that
+        // are applied to the finished tree. ghs.checkpoint takes snapshots to resume from after a crash.
+        String transport = System.getProperty("ghs.transport", "rmi");
+        // ghs.metrics.dump prints the metrics every so many ms, they can always be read over JMX
+        Metrics.GLOBAL.register();
+        Long dump = Long.getLong("ghs.metrics.dump");
+        if(dump != null) {
+            Metrics.GLOBAL.dumpEvery(dump, System.err);
+        }
+        Trace.fromSystemProperties();
+        if("local".equals(transport)) {
+            runLocal();
+        } else if("host".equals(transport)) {
+            runHost();
+        } else if("nio".equals(transport)) {
+            runNio();
+        } else if("sim".equals(transport)) {
+            runSimulation(Long.getLong("ghs.seed", 0L));
+        } else if("boruvka".equals(transport)) {
+            runBoruvka();
+        } else {
+            runRmi();
+        }
+        Trace.close();
+    }
+
+    private static List<Node> createNodes(Transport transport) throws IOException {
+        return createNodes(transport, id -> true);
+    }
+
+    // Builds the owned nodes of the graph generated as set by ghs.gen, of the edge list file ghs.graph, or of the ring
+    // of four when neither is set
+    private static List<Node> createNodes(Transport transport, IntPredicate owned) throws IOException {
+        List<Node> nodes = new ArrayList<>();
+        eachNode(owned, (id, neighbourIds, weights) -> nodes.add(new Node(id, neighbourIds, weights, transport)));
+        return nodes;
+    }
+
+    private static void eachNode(IntPredicate owned, GraphLoader.NodeSink sink) throws IOException {
+        GraphGenerator generator = GraphGenerator.fromSystemProperties();
+        String graph = System.getProperty("ghs.graph");
+        if(generator != null) {
+            generator.nodes(owned, sink);
+            return;
+        } else if(graph != null) {
+            GraphLoader.load(Paths.get(graph), owned, sink);
+            return;
+        }
+        int[][] ring = {{1, 2, 4}, {2, 1, 3}, {3, 2, 4}, {4, 3, 1}};
+        for(int[] n : ring) {
+            if(owned.test(n[0])) {
+                sink.node(n[0], new int[] {n[1], n[2]}, new int[] {1, 1});
+            }
+        }
+    }
+
+    // ghs.checkpoint makes the nodes of this JVM take snapshots, and resume from one, see Checkpointer
+    private static Checkpointer checkpoints(List<Node> nodes) throws IOException {
+        Checkpointer checkpoints = Checkpointer.fromSystemProperties(nodes);
+        if(checkpoints != null && checkpoints.getRestored() > 0) {
+            System.out.println("Resuming from snapshot " + checkpoints.getRestored());
+        }
+        return checkpoints;
+    }
+
+    private static void closeCheckpoints(Checkpointer checkpoints) {
+        if(checkpoints != null) {
+            checkpoints.close();
+            System.out.println("Latest complete snapshot: " + checkpoints.getComplete());
+        }
+    }
+
+    // Opens and wakes every node at a random time in the first second, as Node.run does, but from a few timer threads
+    // instead of a sleeping thread per node
+    private static void startNodes(List<Node> nodes) {
+        ScheduledExecutorService timer = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                    Thread t = new Thread(r, "start");
+                    t.setDaemon(true);
+                    return t;
+                });
+        for(Node n : nodes) {
+            timer.schedule(() -> {
+                try {
+                    n.open();
+                    n.spontaneousStart();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }, ThreadLocalRandom.current().nextInt(1000), TimeUnit.MILLISECONDS);
+        }
+        timer.shutdown(); // the scheduled starts still run
+    }
+
+    // Hands the branches of every node to one collector, whose result completes when the last of them halts
+    private static MstCollector collect(List<Node> nodes) {
+        MstCollector collector = new MstCollector(nodes.size());
+        nodes.forEach(n -> n.reportTo(collector));
+        return collector;
+    }
+
+    private static void printResult(SpanningTree mst, List<Node> nodes) {
+        nodes.forEach(Node::printStatus);
+        System.out.println("Spanning tree: " + mst);
+        if(mst != null && Boolean.parseBoolean(System.getProperty("ghs.verify", "true"))) {
+            Set<Integer> owned = new HashSet<>();
+            nodes.forEach(n -> owned.add(n.getId()));
             try {
-                registry.unbind("p1");
-                registry.unbind("p2");
-                registry.unbind("p3");
-                registry.unbind("p4");
-
-                one.printStatus();
-                two.printStatus();
-                three.printStatus();
-                four.printStatus();
-            } catch (RemoteException | NotBoundException e) {
+                verify(mst, owned::contains, loadGraph());
+            } catch (IOException e) {
                 e.printStackTrace();
             }
-        }));
+        }
+    }
 
+    // Checks the tree against the one Boruvka computes from the whole graph, set ghs.verify=false to skip this
+    private static void verify(SpanningTree mst, IntPredicate owned, EdgeList graph) {
+        long start = System.nanoTime();
+        SpanningTree reference = Boruvka.mst(graph);
+        long millis = (System.nanoTime() - start) / 1000000;
+        List<String> problems = MstVerifier.verify(mst, reference, owned);
+        if(problems.isEmpty()) {
+            System.out.println("Verified against the reference tree (" + millis + " ms)");
+        } else {
+            System.out.println("The spanning tree differs from the reference tree:");
+            problems.forEach(p -> System.out.println("  " + p));
+        }
+    }
+
+    // Applies the updates in the file ghs.updates to the finished tree, one per line: add <u> <v> <weight>,
+    // remove <u> <v> or weight <u> <v> <weight>. They run one after the other; the simulator runs them when it is
+    // run again.
+    private static List<CompletableFuture<Void>> applyUpdates(MstMaintainer maintainer, String file)
+            throws IOException {
+        List<CompletableFuture<Void>> updates = new ArrayList<>();
+        for(String line : Files.readAllLines(Paths.get(file))) {
+            String[] f = line.trim().split("\\s+");
+            if(f[0].isEmpty() || f[0].startsWith("#")) {
+                continue;
+            }
+            int u = Integer.parseInt(f[1]);
+            int v = Integer.parseInt(f[2]);
+            if("add".equals(f[0])) {
+                updates.add(maintainer.insert(u, v, Integer.parseInt(f[3])));
+            } else if("remove".equals(f[0])) {
+                updates.add(maintainer.remove(u, v));
+            } else if("weight".equals(f[0])) {
+                updates.add(maintainer.reweight(u, v, Integer.parseInt(f[3])));
+            } else {
+                throw new IllegalArgumentException("Unknown update: " + line);
+            }
+        }
+        return updates;
+    }
+
+    private static void printUpdates(MstMaintainer maintainer, List<CompletableFuture<Void>> updates) {
+        int failed = 0;
+        for(CompletableFuture<Void> u : updates) {
+            try {
+                u.join();
+            } catch (CompletionException e) {
+                failed++;
+                System.out.println("Update failed: " + e.getCause().getMessage());
+            }
+        }
+        System.out.println("Applied " + (updates.size() - failed) + " of " + updates.size() + " updates, latency " +
+                maintainer.getLatency().summary() + " us, messages " + maintainer.getMessages().summary());
+        SpanningTree mst = maintainer.tree();
+        System.out.println("Spanning tree after the updates: " + mst);
+        if(Boolean.parseBoolean(System.getProperty("ghs.verify", "true"))) {
+            verify(mst, id -> true, maintainer.graph());
+        }
+    }
+
+    // ghs.sessions runs that many more GHS executions at once over the same nodes, once the first one is done. Each
+    // session has weights of its own, like a batch of daily weightings of one network.
+    private static List<MstCollector> startSessions(List<Node> nodes, int count) throws IOException {
+        Map<Integer, Node> byId = new HashMap<>();
+        nodes.forEach(n -> byId.put(n.getId(), n));
+        List<MstCollector> collectors = new ArrayList<>();
+        List<Node> sessionNodes = new ArrayList<>();
+        for(int s = 1; s <= count; s++) {
+            int session = s;
+            List<Node> opened = new ArrayList<>();
+            eachNode(byId::containsKey, (id, neighbourIds, weights) -> {
+                int[] sessionWeights = new int[weights.length];
+                for(int i = 0; i < weights.length; i++) {
+                    sessionWeights[i] = sessionWeight(weights[i], session);
+                }
+                opened.add(byId.get(id).openSession(session, neighbourIds, sessionWeights));
+            });
+            collectors.add(collect(opened));
+            sessionNodes.addAll(opened);
+        }
+        // All sessions are open on all nodes before any of them starts
+        sessionNodes.forEach(Node::spontaneousStart);
+        return collectors;
+    }
+
+    private static void printSessions(List<SpanningTree> trees, List<Node> nodes, IntPredicate owned, long millis)
+            throws IOException {
+        System.out.println(trees.size() + " sessions took " + millis + " ms");
+        for(int s = 1; s <= trees.size(); s++) {
+            SpanningTree mst = trees.get(s - 1);
+            System.out.println("Session " + s + ": " + (mst == null ? "did not finish" :
+                    mst.getEdges().size() + " edges, total weight " + mst.getTotalWeight()));
+            if(mst != null && Boolean.parseBoolean(System.getProperty("ghs.verify", "true"))) {
+                // Built from the edges the nodes were given, parallel edges of the file are dropped like the loader does
+                int session = s;
+                EdgeList weighted = new EdgeList();
+                eachNode(id -> true, (id, neighbourIds, weights) -> {
+                    for(int i = 0; i < neighbourIds.length; i++) {
+                        if(id < neighbourIds[i]) {
+                            weighted.add(id, neighbourIds[i], sessionWeight(weights[i], session));
+                        }
+                    }
+                });
+                verify(mst, owned, weighted);
+            }
+            for(Node n : nodes) {
+                n.closeSession(s);
+            }
+        }
+    }
+
+    // Scrambles a weight by a bijection on 31 bits seeded by the session, so distinct weights stay distinct and both
+    // ends of an edge agree
+    private static int sessionWeight(int weight, int session) {
+        long x = (weight + session * 0x9E3779B9L) & 0x7fffffffL;
+        x = (x * 0x2545F491L) & 0x7fffffffL;
+        x ^= x >>> 15;
+        x = (x * 0x5DEECE66DL) & 0x7fffffffL;
+        x ^= x >>> 13;
+        return (int) x;
+    }
+
+    // The whole graph of ghs.gen, ghs.graph or the ring of four
+    private static EdgeList loadGraph() throws IOException {
+        GraphGenerator generator = GraphGenerator.fromSystemProperties();
+        String graph = System.getProperty("ghs.graph");
+        if(generator != null) {
+            EdgeList edges = new EdgeList();
+            generator.scan(edges::add);
+            return edges;
+        } else if(graph != null) {
+            return EdgeList.read(Paths.get(graph));
+        }
+        EdgeList ring = new EdgeList();
+        ring.add(1, 2, 1);
+        ring.add(2, 3, 1);
+        ring.add(3, 4, 1);
+        ring.add(4, 1, 1);
+        return ring;
+    }
+
+    private static void runBoruvka() throws IOException {
+        EdgeList graph = loadGraph();
+        long start = System.nanoTime();
+        SpanningTree mst = Boruvka.mst(graph);
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println("Boruvka on " + graph.nodeCount() + " nodes and " + graph.size() + " edges took " +
+                millis + " ms");
+        System.out.println("Spanning tree: " + mst);
+    }
+
+    private static void runLocal() throws IOException {
+        LocalTransport transport = new LocalTransport();
+        List<Node> nodes = createNodes(transport);
+        Checkpointer checkpoints = checkpoints(nodes);
+        nodes.forEach(transport::register);
+        MstCollector collector = collect(nodes);
+        startNodes(nodes);
+        if(checkpoints != null) {
+            checkpoints.start();
+        }
+
+        printResult(collector.result().join(), nodes);
+        closeCheckpoints(checkpoints);
+        int sessions = Integer.getInteger("ghs.sessions", 0);
+        if(sessions > 0) {
+            long start = System.nanoTime();
+            List<SpanningTree> trees = new ArrayList<>();
+            for(MstCollector c : startSessions(nodes, sessions)) {
+                trees.add(c.result().join());
+            }
+            printSessions(trees, nodes, id -> true, (System.nanoTime() - start) / 1000000);
+        }
+        String updates = System.getProperty("ghs.updates");
+        if(updates != null) {
+            MstMaintainer maintainer = new MstMaintainer(nodes);
+            printUpdates(maintainer, applyUpdates(maintainer, updates));
+        }
+    }
+
+    // Runs the nodes listed in ghs.host.nodes (default all) behind one endpoint, other hosts run the rest
+    private static void runHost() throws IOException, AlreadyBoundException {
+        Registry registry = LocateRegistry.getRegistry("0.0.0.0",1099);
+        NodeHost host = NodeHost.fromSystemProperties();
+        List<Node> nodes = createNodes(host, hosted());
+        Checkpointer checkpoints = checkpoints(nodes);
+        nodes.forEach(host::register);
+        MstCollector collector = collect(nodes);
+        host.bind(registry);
+
+        startNodes(nodes);
+        if(checkpoints != null) {
+            checkpoints.start();
+        }
+
+        // Other hosts may still be busy, this host only knows the branches of its own nodes
+        printResult(collector.result().join(), nodes);
+        closeCheckpoints(checkpoints);
+        int sessions = Integer.getInteger("ghs.sessions", 0);
+        if(sessions > 0) {
+            // Frames of sessions the other hosts open first are held by the nodes until these are open too
+            long start = System.nanoTime();
+            List<SpanningTree> trees = new ArrayList<>();
+            for(MstCollector c : startSessions(nodes, sessions)) {
+                trees.add(c.result().join());
+            }
+            printSessions(trees, nodes, hosted(), (System.nanoTime() - start) / 1000000);
+        }
+        host.close();
+        try {
+            host.unbind(registry);
+        } catch (NotBoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Like host, but the hosts talk over NioTransport instead of RMI, so there is no registry
+    private static void runNio() throws IOException {
+        LocalTransport local = new LocalTransport();
+        NioTransport remote = NioTransport.fromSystemProperties();
+        NodeHost host = new NodeHost(System.getProperty("ghs.host.name", "0"), local, remote);
+        List<Node> nodes = createNodes(host, hosted());
+        Checkpointer checkpoints = checkpoints(nodes);
+        nodes.forEach(host::register);
+        MstCollector collector = collect(nodes);
+        remote.start(local, host.hostedIds());
+
+        startNodes(nodes);
+        if(checkpoints != null) {
+            checkpoints.start();
+        }
+
+        // Other hosts may still be busy, this host only knows the branches of its own nodes
+        printResult(collector.result().join(), nodes);
+        closeCheckpoints(checkpoints);
+        int sessions = Integer.getInteger("ghs.sessions", 0);
+        if(sessions > 0) {
+            // Frames of sessions the other hosts open first are held by the nodes until these are open too
+            long start = System.nanoTime();
+            List<SpanningTree> trees = new ArrayList<>();
+            for(MstCollector c : startSessions(nodes, sessions)) {
+                trees.add(c.result().join());
+            }
+            printSessions(trees, nodes, hosted(), (System.nanoTime() - start) / 1000000);
+        }
+        host.close();
+    }
+
+    // The nodes listed in ghs.host.nodes, all if it is not set
+    private static IntPredicate hosted() {
+        String hosted = System.getProperty("ghs.host.nodes");
+        Set<String> hostedIds = hosted == null ? null : new HashSet<>(Arrays.asList(hosted.split(",")));
+        return id -> hostedIds == null || hostedIds.contains(Integer.toString(id));
+    }
+
+    private static void runSimulation(long seed) throws IOException {
+        Simulator simulator = new Simulator(seed, LinkDelay.uniform(Dispatcher.NETWORK_DELAY));
+        List<Node> nodes = createNodes(simulator);
+        Checkpointer checkpoints = checkpoints(nodes);
+        nodes.forEach(simulator::add);
+        MstCollector collector = collect(nodes);
+        if(checkpoints != null) {
+            simulator.every(checkpoints.getInterval(), checkpoints::initiate);
+        }
+        long messages = simulator.run();
+        closeCheckpoints(checkpoints);
+        System.out.println("Delivered " + messages + " messages in " + simulator.now() + " ms of virtual time");
+        if(!collector.result().isDone()) {
+            System.out.println("The simulation ran out of messages before every node halted");
+        }
+        printResult(collector.result().getNow(null), nodes);
+        long edges = nodes.stream().mapToLong(Node::degree).sum() / 2;
+        System.out.println(Metrics.GLOBAL.snapshot());
+        System.out.println(String.format("%.3f of the 2E + 5N log N message bound",
+                Metrics.GLOBAL.boundRatio(edges, nodes.size())));
+        int sessions = Integer.getInteger("ghs.sessions", 0);
+        if(sessions > 0 && collector.result().isDone()) {
+            long start = System.nanoTime();
+            List<MstCollector> collectors = startSessions(nodes, sessions);
+            simulator.run();
+            List<SpanningTree> trees = new ArrayList<>();
+            collectors.forEach(c -> trees.add(c.result().getNow(null)));
+            printSessions(trees, nodes, id -> true, (System.nanoTime() - start) / 1000000);
+        }
+        String updates = System.getProperty("ghs.updates");
+        if(updates != null && collector.result().isDone()) {
+            MstMaintainer maintainer = new MstMaintainer(nodes);
+            List<CompletableFuture<Void>> done = applyUpdates(maintainer, updates);
+            simulator.run();
+            printUpdates(maintainer, done);
+        }
+    }
+
+    private static void runRmi() throws IOException, AlreadyBoundException {
+        Registry registry = LocateRegistry.getRegistry("0.0.0.0",1099);
+        Transport transport = RmiTransport.fromSystemProperties();
+        List<Node> nodes = createNodes(transport);
+        Checkpointer checkpoints = checkpoints(nodes);
+
+        for(Node n : nodes) {
+            INode stub = (INode) UnicastRemoteObject.exportObject(n, 0);
+            registry.bind("p" + n.getId(), stub);
+        }
+
+        MstCollector collector = collect(nodes);
+        startNodes(nodes);
+        if(checkpoints != null) {
+            checkpoints.start();
+        }
+
+        // Other JVMs may still be busy, this one only knows the branches of its own nodes
+        printResult(collector.result().join(), nodes);
+        closeCheckpoints(checkpoints);
+        transport.close();
+        for(Node n : nodes) {
+            try {
+                registry.unbind("p" + n.getId());
+            } catch (NotBoundException e) {
+                e.printStackTrace();
+            }
+            UnicastRemoteObject.unexportObject(n, true);
+        }
     }
 }
@@ -0,0 +1,171 @@
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.Collections;
+
+// One GHS message as a value, so it can be queued, batched or encoded before it is delivered to an INode
+public final class Message implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final MessageType type;
+    final int from;
+    final int level; // the fragment level of Initiate and Test, the value of Connect, the update id of a repair
+    final Weight weight; // the fragment name of Initiate and Test, the best weight of Report, the heaviest or best
+                         // tree edge found by a repair
+    final NodeState state; // the node state of Initiate, FIND on a RemoveEdge whose receiver searches a replacement
+    final Weight edge; // the edge that is added or reweighted by a repair
+    final long sentAt; // Metrics clock when the message was created, for the latency histogram
+    int session; // the GHS execution it belongs to, set once by the sending node before a transport gets it
+
+    private Message(MessageType type, int from, int level, Weight weight, NodeState state) {
+        this(type, from, level, weight, state, null);
+    }
+
+    private Message(MessageType type, int from, int level, Weight weight, NodeState state, Weight edge) {
+        this(type, from, level, weight, state, edge, Metrics.GLOBAL.now());
+    }
+
+    private Message(MessageType type, int from, int level, Weight weight, NodeState state, Weight edge, long sentAt) {
+        this.type = type;
+        this.from = from;
+        this.level = level;
+        this.weight = weight;
+        this.state = state;
+        this.edge = edge;
+        this.sentAt = sentAt;
+    }
+
+    // A message as WireCodec read it, which keeps the send time of the sending host
+    static Message decoded(int session, MessageType type, int from, int level, Weight weight, NodeState state,
+                           Weight edge, long sentAt) {
+        Message m = new Message(type, from, level, weight, state, edge, sentAt);
+        m.session = session;
+        return m;
+    }
+
+    public static Message initiate(int from, int level, Weight fragmentName, NodeState state) {
+        return new Message(MessageType.INITIATE, from, level, fragmentName, state);
+    }
+
+    public static Message test(int from, int level, Weight fragmentName) {
+        return new Message(MessageType.TEST, from, level, fragmentName, null);
+    }
+
+    public static Message accept(int from) {
+        return new Message(MessageType.ACCEPT, from, 0, null, null);
+    }
+
+    public static Message reject(int from) {
+        return new Message(MessageType.REJECT, from, 0, null, null);
+    }
+
+    public static Message report(int from, Weight bestWeight) {
+        return new Message(MessageType.REPORT, from, 0, bestWeight, null);
+    }
+
+    public static Message connect(int from, int value) {
+        return new Message(MessageType.CONNECT, from, value, null, null);
+    }
+
+    public static Message changeRoot(int from) {
+        return new Message(MessageType.CHANGE_ROOT, from, 0, null, null);
+    }
+
+    public static Message halt(int from) {
+        return new Message(MessageType.HALT, from, 0, null, null);
+    }
+
+    public static Message addEdge(int from, int update, Weight edge) {
+        return new Message(MessageType.ADD_EDGE, from, update, null, null, edge);
+    }
+
+    public static Message removeEdge(int from, int update, boolean search) {
+        return new Message(MessageType.REMOVE_EDGE, from, update, null, search ? NodeState.FIND : NodeState.FOUND);
+    }
+
+    public static Message reweight(int from, int update, Weight edge) {
+        return new Message(MessageType.REWEIGHT, from, update, null, null, edge);
+    }
+
+    public static Message markPath(int from, int update, Weight heaviest, Weight edge) {
+        return new Message(MessageType.MARK_PATH, from, update, heaviest, null, edge);
+    }
+
+    public static Message marked(int from, int update, Weight edge) {
+        return new Message(MessageType.MARKED, from, update, null, null, edge);
+    }
+
+    public static Message findCycle(int from, int update, Weight heaviest, Weight edge) {
+        return new Message(MessageType.FIND_CYCLE, from, update, heaviest, null, edge);
+    }
+
+    public static Message swap(int from, int update, Weight heaviest, Weight edge) {
+        return new Message(MessageType.SWAP, from, update, heaviest, null, edge);
+    }
+
+    public static Message reroot(int from, int update, Weight edge) {
+        return new Message(MessageType.REROOT, from, update, null, null, edge);
+    }
+
+    public static Message repair(MessageType type, int from, int update) {
+        return new Message(type, from, update, null, null);
+    }
+
+    public static Message best(int from, int update, Weight best) {
+        return new Message(MessageType.BEST, from, update, best, null);
+    }
+
+    public static Message marker(int from, int snapshot) {
+        return new Message(MessageType.MARKER, from, snapshot, null, null);
+    }
+
+    public static Message credit(int from, int count) {
+        return new Message(MessageType.CREDIT, from, count, null, null);
+    }
+
+    public void deliverTo(INode receiver) throws RemoteException {
+        if(receiver instanceof Node) {
+            ((Node) receiver).receive(this); // local, keeps the send time
+            return;
+        } else if(session != 0) {
+            // Only the batch entry point carries the session, the methods per type are for the default one
+            receiver.receiveBatch(Collections.singletonList(this));
+            return;
+        }
+        switch (type) {
+            case INITIATE:
+                receiver.receiveInitiate(from, level, weight, state);
+                break;
+            case TEST:
+                receiver.receiveTest(from, level, weight);
+                break;
+            case ACCEPT:
+                receiver.receiveAccept(from);
+                break;
+            case REJECT:
+                receiver.receiveReject(from);
+                break;
+            case REPORT:
+                receiver.receiveReport(from, weight);
+                break;
+            case CONNECT:
+                receiver.receiveConnect(from, level);
+                break;
+            case CHANGE_ROOT:
+                receiver.receiveChangeRoot(from);
+                break;
+            case HALT:
+                receiver.receiveHalt(from);
+                break;
+            default:
+                // Repairs, markers and credits are rare, they share the batch entry point instead of a method each
+                receiver.receiveBatch(Collections.singletonList(this));
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (session == 0 ? "" : session + ":") + type + "(" + from + ", " + level + ", " + weight + ", " + state +
+                (edge == null ? "" : ", " + edge) + ")";
+    }
+}
@@ -0,0 +1,31 @@
+public enum MessageType {
+    INITIATE,
+    TEST,
+    ACCEPT,
+    REJECT,
+    REPORT,
+    CONNECT,
+    CHANGE_ROOT,
+    HALT,
+    // Repairs of a finished tree, see MstMaintainer
+    ADD_EDGE,
+    REMOVE_EDGE,
+    REWEIGHT,
+    MARK_PATH,
+    MARKED,
+    FIND_CYCLE,
+    SWAP,
+    REROOT,
+    BRANCH,
+    SEARCH,
+    SEARCHED,
+    FIND_REPLACEMENT,
+    CHECK,
+    CHECKED,
+    BEST,
+    ATTACH,
+    // Chandy-Lamport snapshots, see Checkpointer
+    MARKER,
+    // Flow control between neighbours, see Node.send
+    CREDIT
+}
@@ -0,0 +1,268 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Message counters and timings of all nodes in this JVM. Times come from a microsecond clock, the wall clock unless
+// the simulator replaces it with virtual time, so latencies of messages between hosts include their clock skew.
+public class Metrics implements MetricsMXBean {
+    private static final MessageType[] TYPES = MessageType.values(); // these two before GLOBAL, which uses them
+    // The messages the GHS bound counts; HALT, repairs, markers and credits come on top
+    private static final Set<MessageType> GHS = EnumSet.range(MessageType.INITIATE, MessageType.CHANGE_ROOT);
+    private static final long EPOCH_OFFSET = epochMicros() - System.nanoTime() / 1000;
+    public static final Metrics GLOBAL = new Metrics();
+    public static final String OBJECT_NAME = "ghs:type=Metrics";
+
+    private final LongAdder[] sent = new LongAdder[TYPES.length];
+    private final LongAdder[] received = new LongAdder[TYPES.length];
+    private final Histogram latency = new Histogram();
+    private final Histogram reportDeferral = new Histogram();
+    private final Histogram testDeferral = new Histogram();
+    private final Histogram connectDeferral = new Histogram();
+    private final Histogram linkStalls = new Histogram();
+    private final LongAccumulator maxLevel = new LongAccumulator(Math::max, 0);
+    private final AtomicLong startedAt = new AtomicLong(-1);
+    private final AtomicLong haltedAt = new AtomicLong(-1);
+    private final Map<Integer, NodeMetrics> nodes = new ConcurrentHashMap<>();
+    private volatile LongSupplier clock = Metrics::wallClock;
+
+    private Metrics() {
+        for(int i = 0; i < TYPES.length; i++) {
+            sent[i] = new LongAdder();
+            received[i] = new LongAdder();
+        }
+    }
+
+    // Registers this object with the platform MBean server, so jconsole and friends can read it
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Prints a snapshot to out every period ms, on a daemon thread
+    public void dumpEvery(long period, PrintStream out) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> out.println(snapshot()), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void useClock(LongSupplier micros) {
+        this.clock = micros;
+    }
+
+    public long now() {
+        return clock.getAsLong();
+    }
+
+    // Epoch microseconds, read from nanoTime since that is a lot cheaper than asking for the time of day every message
+    private static long wallClock() {
+        return EPOCH_OFFSET + System.nanoTime() / 1000;
+    }
+
+    private static long epochMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1000;
+    }
+
+    // A node with the same id replaces the previous one, so repeated runs in one JVM do not pile up
+    NodeMetrics track(int nodeId) {
+        NodeMetrics node = new NodeMetrics(nodeId);
+        nodes.put(nodeId, node);
+        return node;
+    }
+
+    void sent(NodeMetrics node, MessageType type) {
+        node.countSent(type);
+        sent[type.ordinal()].increment();
+    }
+
+    void received(NodeMetrics node, Message message) {
+        node.countReceived(message.type);
+        received[message.type.ordinal()].increment();
+        latency.record(now() - message.sentAt);
+    }
+
+    void deferred(MessageType queue, long since) {
+        long time = now() - since;
+        if(queue == MessageType.REPORT) {
+            reportDeferral.record(time);
+        } else if(queue == MessageType.TEST) {
+            testDeferral.record(time);
+        } else {
+            connectDeferral.record(time);
+        }
+    }
+
+    void linkStalled(long micros) {
+        linkStalls.record(micros);
+    }
+
+    void started() {
+        startedAt.compareAndSet(-1, now());
+    }
+
+    void level(int level) {
+        maxLevel.accumulate(level);
+    }
+
+    void halted() {
+        haltedAt.compareAndSet(-1, now());
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return sum(sent);
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return sum(received);
+    }
+
+    @Override
+    public long getGhsMessagesSent() {
+        long total = 0;
+        for(MessageType type : GHS) {
+            total += sent[type.ordinal()].sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getOtherMessagesSent() {
+        return getMessagesSent() - getGhsMessagesSent();
+    }
+
+    @Override
+    public Map<String, Long> getSentByType() {
+        return byType(sent);
+    }
+
+    @Override
+    public Map<String, Long> getReceivedByType() {
+        return byType(received);
+    }
+
+    @Override
+    public Map<String, Long> getLatency() {
+        return latency.summary();
+    }
+
+    @Override
+    public Map<String, Long> getReportDeferral() {
+        return reportDeferral.summary();
+    }
+
+    @Override
+    public Map<String, Long> getTestDeferral() {
+        return testDeferral.summary();
+    }
+
+    @Override
+    public Map<String, Long> getConnectDeferral() {
+        return connectDeferral.summary();
+    }
+
+    @Override
+    public Map<String, Long> getLinkStalls() {
+        return linkStalls.summary();
+    }
+
+    @Override
+    public int getMaxLevel() {
+        return (int) maxLevel.get();
+    }
+
+    @Override
+    public long getTimeToHalt() {
+        long halted = haltedAt.get();
+        return halted < 0 ? -1 : halted - startedAt.get();
+    }
+
+    @Override
+    public double boundRatio(long edges, long nodes) {
+        double bound = 2.0 * edges + 5.0 * nodes * Math.log(nodes) / Math.log(2);
+        return bound == 0 ? 0 : getGhsMessagesSent() / bound;
+    }
+
+    @Override
+    public List<String> hottestNodes(int count) {
+        return nodes.values().stream()
+                .sorted(Comparator.comparingLong(NodeMetrics::total).reversed())
+                .limit(count)
+                .map(NodeMetrics::toString)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public String snapshot() {
+        List<String> lines = new ArrayList<>();
+        lines.add("messages: " + getMessagesSent() + " sent, " + getMessagesReceived() + " received, " +
+                getGhsMessagesSent() + " GHS sent and " + getOtherMessagesSent() + " others");
+        lines.add("sent: " + getSentByType());
+        lines.add("received: " + getReceivedByType());
+        lines.add("latency us: " + getLatency());
+        lines.add("deferral us: report " + getReportDeferral() + ", test " + getTestDeferral() + ", connect " +
+                getConnectDeferral());
+        lines.add("max level: " + getMaxLevel() + ", time to halt us: " + getTimeToHalt());
+        lines.add("link stalls us: " + getLinkStalls());
+        lines.add("hottest: " + hottestNodes(3));
+        return String.join(System.lineSeparator(), lines);
+    }
+
+    @Override
+    public void reset() {
+        for(int i = 0; i < TYPES.length; i++) {
+            sent[i].reset();
+            received[i].reset();
+        }
+        latency.reset();
+        reportDeferral.reset();
+        testDeferral.reset();
+        connectDeferral.reset();
+        linkStalls.reset();
+        maxLevel.reset();
+        startedAt.set(-1);
+        haltedAt.set(-1);
+        nodes.clear();
+    }
+
+    private static long sum(LongAdder[] counters) {
+        long total = 0;
+        for(LongAdder c : counters) {
+            total += c.sum();
+        }
+        return total;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] counters) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for(MessageType type : TYPES) {
+            counts.put(type.name(), counters[type.ordinal()].sum());
+        }
+        return counts;
+    }
+}
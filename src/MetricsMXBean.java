@@ -0,0 +1,46 @@
+import java.util.List;
+import java.util.Map;
+
+// Management interface of Metrics, registered as ghs:type=Metrics. Durations are in microseconds.
+public interface MetricsMXBean {
+    long getMessagesSent();
+
+    long getMessagesReceived();
+
+    // The sent messages of the seven types the GHS bound counts, and all others: HALT, repairs, markers and credits
+    long getGhsMessagesSent();
+
+    long getOtherMessagesSent();
+
+    Map<String, Long> getSentByType();
+
+    Map<String, Long> getReceivedByType();
+
+    // Send to handle latency of all received messages
+    Map<String, Long> getLatency();
+
+    // Time deferred messages spent in the report, test and connect queue
+    Map<String, Long> getReportDeferral();
+
+    Map<String, Long> getTestDeferral();
+
+    Map<String, Long> getConnectDeferral();
+
+    // How long links had messages waiting for credit, and nio senders for a full connection, one value per stall
+    Map<String, Long> getLinkStalls();
+
+    int getMaxLevel();
+
+    // From the first spontaneous start to HALT, -1 while the core of this JVM has not halted
+    long getTimeToHalt();
+
+    // GHS messages sent so far divided by the GHS bound 2E + 5N log2 N
+    double boundRatio(long edges, long nodes);
+
+    // The nodes of this JVM that sent and received the most messages
+    List<String> hottestNodes(int count);
+
+    String snapshot();
+
+    void reset();
+}
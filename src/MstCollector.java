@@ -0,0 +1,34 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Collects the branches of the nodes as they halt. The result completes once every expected node has halted; with
+// nodes spread over several JVMs each collector holds the branches that touch its own nodes.
+public class MstCollector {
+    private final Map<Long, Edge> edges = new ConcurrentHashMap<>(); // both ends report a branch, keep it once
+    private final AtomicInteger remaining;
+    private final CompletableFuture<SpanningTree> result = new CompletableFuture<>();
+
+    public MstCollector(int expectedNodes) {
+        this.remaining = new AtomicInteger(expectedNodes);
+        if(expectedNodes == 0) {
+            result.complete(new SpanningTree(new ArrayList<>()));
+        }
+    }
+
+    void halted(int nodeId, List<Edge> branches) {
+        for(Edge e : branches) {
+            edges.putIfAbsent(((long) e.source << 32) | (e.target & 0xffffffffL), e);
+        }
+        if(remaining.decrementAndGet() == 0) {
+            result.complete(new SpanningTree(new ArrayList<>(edges.values())));
+        }
+    }
+
+    public CompletableFuture<SpanningTree> result() {
+        return result;
+    }
+}
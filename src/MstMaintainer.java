@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+// Keeps the tree of a finished GHS run minimal while edges are added, removed and reweighted, without running GHS
+// again. An added edge swaps with the heaviest branch on the cycle it closes, a removed branch is replaced by the
+// lightest edge out of the subtree it cut off, so the cost of an update depends on that cycle or subtree only.
+//
+// Updates run one at a time: each starts when the previous one is done. Like the collector it needs the nodes in
+// this JVM, so it works with the local and simulated transports.
+public class MstMaintainer {
+    private final Map<Integer, Node> nodes = new HashMap<>();
+    private final Map<Integer, CompletableFuture<Void>> running = new ConcurrentHashMap<>();
+    private final Map<Integer, long[]> started = new ConcurrentHashMap<>(); // Metrics clock and messages sent
+    private final AtomicInteger nextUpdate = new AtomicInteger();
+    private final Histogram latency = new Histogram();
+    private final Histogram messages = new Histogram();
+    private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+
+    public MstMaintainer(Collection<Node> nodes) {
+        for(Node n : nodes) {
+            this.nodes.put(n.getId(), n);
+            n.maintainedBy(this);
+        }
+    }
+
+    public CompletableFuture<Void> insert(int u, int v, int weight) {
+        return enqueue(() -> start(update -> node(u).insertEdge(node(v).getId(), weight, update)));
+    }
+
+    public CompletableFuture<Void> remove(int u, int v) {
+        return enqueue(() -> start(update -> node(u).removeEdge(node(v).getId(), update)));
+    }
+
+    public CompletableFuture<Void> reweight(int u, int v, int weight) {
+        return enqueue(() -> {
+            Node n = node(u);
+            Weight old = n.weightTo(v);
+            if(old == null) {
+                throw new EdgeException("Node " + u + " has no edge to " + v);
+            }
+            // A lighter branch or a heavier non-tree edge keeps its place, anything else may have to move
+            boolean branch = n.isBranch(v);
+            if(branch ? weight <= old.value() : weight >= old.value()) {
+                return start(update -> n.changeWeight(v, weight, update));
+            }
+            return start(update -> n.removeEdge(v, update))
+                    .thenCompose(x -> start(update -> n.insertEdge(v, weight, update)));
+        });
+    }
+
+    // Every update's time from start to done on the Metrics clock, in microseconds
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    // The number of messages every update sent
+    public Histogram getMessages() {
+        return messages;
+    }
+
+    // The current tree; only meaningful while no update is running
+    public SpanningTree tree() {
+        Map<Long, Edge> edges = new HashMap<>();
+        for(Node n : nodes.values()) {
+            for(Edge e : n.branches()) {
+                edges.putIfAbsent(((long) e.source << 32) | (e.target & 0xffffffffL), e);
+            }
+        }
+        return new SpanningTree(new ArrayList<>(edges.values()));
+    }
+
+    // The current graph as the nodes see it, for checking the tree against a reference
+    public EdgeList graph() {
+        EdgeList edges = new EdgeList();
+        List<Integer> ids = new ArrayList<>(nodes.keySet());
+        ids.sort(null);
+        for(Integer id : ids) {
+            nodes.get(id).addEdgesTo(edges);
+        }
+        return edges;
+    }
+
+    void completed(int update) {
+        CompletableFuture<Void> done = running.remove(update);
+        long[] start = started.remove(update);
+        if(start != null) {
+            latency.record(Metrics.GLOBAL.now() - start[0]);
+            messages.record(Metrics.GLOBAL.getMessagesSent() - start[1]);
+        }
+        if(done != null) {
+            done.complete(null);
+        }
+    }
+
+    void failed(int update, String reason) {
+        started.remove(update);
+        CompletableFuture<Void> done = running.remove(update);
+        if(done != null) {
+            done.completeExceptionally(new EdgeException(reason));
+        }
+    }
+
+    // Chains an update behind the previous one, whether that one succeeded or not
+    private synchronized CompletableFuture<Void> enqueue(Supplier<CompletableFuture<Void>> update) {
+        CompletableFuture<Void> done = last.handle((x, e) -> null).thenCompose(x -> update.get());
+        last = done;
+        return done;
+    }
+
+    private CompletableFuture<Void> start(IntConsumer action) {
+        int update = nextUpdate.getAndIncrement();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        running.put(update, done);
+        started.put(update, new long[] {Metrics.GLOBAL.now(), Metrics.GLOBAL.getMessagesSent()});
+        action.accept(update);
+        return done;
+    }
+
+    private Node node(int id) {
+        Node n = nodes.get(id);
+        if(n == null) {
+            throw new EdgeException("Node " + id + " is not maintained here");
+        }
+        return n;
+    }
+}
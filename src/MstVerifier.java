@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+// Compares the tree of a distributed run with the reference tree. Minimum spanning trees are unique under the Weight
+// order, so any difference is an error in the run.
+public class MstVerifier {
+    private static final int MAX_REPORTED = 10; // edges listed of each kind, the rest is only counted
+
+    // Returns the differences, empty if the trees agree. Only reference edges that touch an owned node are expected,
+    // as a JVM that runs part of the nodes only collects those.
+    public static List<String> verify(SpanningTree actual, SpanningTree reference, IntPredicate owned) {
+        Set<Long> found = new HashSet<>();
+        for(Edge e : actual.getEdges()) {
+            found.add(key(e));
+        }
+        List<String> missingEdges = new ArrayList<>();
+        int missing = 0;
+        int expected = 0;
+        for(Edge e : reference.getEdges()) {
+            if(!owned.test(e.source) && !owned.test(e.target)) {
+                continue;
+            }
+            expected++;
+            if(!found.remove(key(e))) {
+                if(++missing <= MAX_REPORTED) {
+                    missingEdges.add("missing " + e + " " + e.weight);
+                }
+            }
+        }
+        List<String> extraEdges = new ArrayList<>();
+        int extra = 0;
+        for(Edge e : actual.getEdges()) {
+            if(found.contains(key(e)) && ++extra <= MAX_REPORTED) {
+                extraEdges.add("not in the minimum spanning tree " + e + " " + e.weight);
+            }
+        }
+        // The counts first, then at most MAX_REPORTED edges of each kind
+        List<String> problems = new ArrayList<>();
+        if(missing + extra > 0) {
+            problems.add(missing + " edges missing and " + extra + " wrong edges");
+            problems.addAll(missingEdges);
+            if(missing > MAX_REPORTED) {
+                problems.add("... and " + (missing - MAX_REPORTED) + " more missing edges");
+            }
+            problems.addAll(extraEdges);
+            if(extra > MAX_REPORTED) {
+                problems.add("... and " + (extra - MAX_REPORTED) + " more wrong edges");
+            }
+        }
+        if(missing == 0 && extra == 0 && expected == reference.getEdges().size()
+                && actual.getTotalWeight() != reference.getTotalWeight()) {
+            problems.add("total weight " + actual.getTotalWeight() + " instead of " + reference.getTotalWeight());
+        }
+        return problems;
+    }
+
+    private static long key(Edge e) {
+        return ((long) e.source << 32) | (e.target & 0xffffffffL);
+    }
+}
@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+
+// Carries messages between hosts as WireCodec frames over plain TCP instead of RMI. Every pair of hosts shares one
+// persistent channel, dialled by the host whose address sorts first. Each side opens it with HELLO frames that list
+// the nodes it runs, which is how the routes are learnt.
+//
+// Senders encode straight into the direct out buffer of the connection and return, so frames are pipelined and go
+// out many at a time. A single selector thread does all connecting, reading and writing, and hands every frame it
+// reads to the inbound transport of this host.
+public class NioTransport implements Transport {
+    private static final int BUFFER_SIZE = 1 << 20; // per connection and direction
+    private static final long RESOLVE_TIMEOUT = 60000; // ms open waits for the hosts of the neighbours to say hello
+    private static final long CLOSE_TIMEOUT = 10000; // ms close waits for the out buffers to drain
+    private static final long RETRY = 200; // ms between dials of a host that is not listening yet
+
+    private final String address; // host:port this host listens on, as the other hosts list it
+    private final List<String> peers; // host:port of every other host
+    private final Map<Integer, Connection> routes = new ConcurrentHashMap<>(); // node id to the host that runs it
+    private final ConcurrentLinkedQueue<Connection> flushes = new ConcurrentLinkedQueue<>();
+    private final List<Connection> connections = new ArrayList<>(); // only touched by the selector thread
+    private final Map<String, Long> redials = new ConcurrentHashMap<>(); // peer to when it is dialled again
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Transport inbound;
+    private int[] hostedIds;
+    private Thread loop;
+    private volatile boolean running;
+
+    public NioTransport(String address, List<String> peers) {
+        this.address = address;
+        this.peers = new ArrayList<>(peers);
+        this.peers.remove(address);
+    }
+
+    // Reads ghs.nio.address (default localhost:7000) and ghs.nio.peers, a comma separated list of the host:port of
+    // every host; it may include this host
+    public static NioTransport fromSystemProperties() {
+        String peers = System.getProperty("ghs.nio.peers", "");
+        return new NioTransport(System.getProperty("ghs.nio.address", "localhost:7000"),
+                peers.isEmpty() ? new ArrayList<>() : Arrays.asList(peers.split(",")));
+    }
+
+    // Starts listening and dialling. Frames that come in are handed to inbound, which must know the hosted nodes.
+    public void start(Transport inbound, int[] hostedIds) throws IOException {
+        this.inbound = inbound;
+        this.hostedIds = hostedIds.clone();
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(socketAddress(address));
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+        for(String peer : peers) {
+            if(peer.compareTo(address) > 0) {
+                redials.put(peer, 0L);
+            }
+        }
+        this.running = true;
+        this.loop = new Thread(this::loop, "nio-transport");
+        this.loop.setDaemon(true);
+        this.loop.start();
+    }
+
+    // Waits until the hosts of all neighbours are connected
+    @Override
+    public void open(Integer nodeId, Collection<Integer> neighbourIds) {
+        long deadline = System.currentTimeMillis() + RESOLVE_TIMEOUT;
+        for(Integer n : neighbourIds) {
+            route(n, deadline);
+        }
+    }
+
+    // A node woken by a message of a local node may send before its own open, so a missing route is waited for too
+    @Override
+    public void send(Integer from, Integer to, Message message) {
+        Connection c = routes.get(to);
+        if(c == null) {
+            c = route(to, System.currentTimeMillis() + RESOLVE_TIMEOUT);
+        }
+        c.write(to, message);
+    }
+
+    private Connection route(Integer nodeId, long deadline) {
+        synchronized(routes) {
+            Connection c;
+            while((c = routes.get(nodeId)) == null) {
+                long left = deadline - System.currentTimeMillis();
+                if(left <= 0) {
+                    throw new RuntimeException("No host runs node " + nodeId);
+                }
+                try {
+                    routes.wait(left);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Interrupted while waiting for the host of node " + nodeId, e);
+                }
+            }
+            return c;
+        }
+    }
+
+    @Override
+    public void close() {
+        if(!running) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        for(Connection c : routes.values()) {
+            c.awaitDrained(deadline);
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void loop() {
+        try {
+            while(running) {
+                dialDue();
+                selector.select(RETRY);
+                Connection c;
+                while((c = flushes.poll()) != null) {
+                    c.flush();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    } else if(key.isAcceptable()) {
+                        SocketChannel channel = server.accept();
+                        if(channel != null) {
+                            connected(channel);
+                        }
+                    } else if(key.isConnectable()) {
+                        finishConnect(key);
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if(key.isReadable()) {
+                            connection.read();
+                        }
+                        if(key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for(Connection c : connections) {
+                c.close();
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void dialDue() {
+        long now = System.currentTimeMillis();
+        for(Map.Entry<String, Long> e : redials.entrySet()) {
+            if(e.getValue() > now) {
+                continue;
+            }
+            redials.remove(e.getKey());
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.connect(socketAddress(e.getKey()));
+                channel.register(selector, SelectionKey.OP_CONNECT, e.getKey());
+            } catch (IOException ex) {
+                redials.put(e.getKey(), now + RETRY);
+            }
+        }
+    }
+
+    private void finishConnect(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        String peer = (String) key.attachment();
+        try {
+            channel.finishConnect();
+            connected(channel);
+        } catch (IOException e) {
+            // Not listening yet, the hosts may start in any order
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            redials.put(peer, System.currentTimeMillis() + RETRY);
+        }
+    }
+
+    private void connected(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection c = new Connection(channel);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+        connections.add(c);
+        c.hello();
+        c.flush();
+    }
+
+    private static InetSocketAddress socketAddress(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE); // read mode between reads
+        private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE); // write mode, guarded by this
+        private final int[] ids = new int[WireCodec.MAX_HELLO_IDS];
+        private SelectionKey key;
+        private boolean flushing; // queued for the selector thread or waiting for the channel to take more
+        private boolean closed;
+        private int announced; // hosted ids sent in HELLO frames so far
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.in.flip();
+        }
+
+        // Blocks while the out buffer is full, the receiving host sets the pace. The caller is usually a mailbox on
+        // the common pool, which may add a worker meanwhile. An interrupt does not drop the message, GHS stalls on a
+        // lost one, it is passed on once the frame is written.
+        synchronized void write(int to, Message m) {
+            int size = WireCodec.size(m);
+            boolean full = out.remaining() < size;
+            long since = System.nanoTime();
+            boolean interrupted = false;
+            ForkJoinPool.ManagedBlocker room = new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException {
+                    if(!isReleasable()) {
+                        Connection.this.wait();
+                    }
+                    return isReleasable();
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return out.remaining() >= size || closed;
+                }
+            };
+            while(!room.isReleasable()) {
+                try {
+                    ForkJoinPool.managedBlock(room);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if(full) {
+                Metrics.GLOBAL.linkStalled((System.nanoTime() - since) / 1000);
+            }
+            if(closed) {
+                return; // the other host has left, it has no node left that waits for this
+            }
+            WireCodec.encode(to, m, out);
+            requestFlush();
+        }
+
+        // Adds as many HELLO frames as the out buffer takes, flush adds the rest as it drains
+        synchronized void hello() {
+            while(announced < hostedIds.length) {
+                int count = Math.min(WireCodec.MAX_HELLO_IDS, hostedIds.length - announced);
+                if(out.remaining() < WireCodec.helloSize(count)) {
+                    return;
+                }
+                WireCodec.encodeHello(hostedIds, announced, count, out);
+                announced += count;
+            }
+        }
+
+        private void requestFlush() {
+            if(!flushing) {
+                flushing = true;
+                flushes.add(this);
+                selector.wakeup();
+            }
+        }
+
+        // Selector thread only
+        synchronized void flush() {
+            if(closed) {
+                return;
+            }
+            try {
+                out.flip();
+                channel.write(out);
+                out.compact();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            hello();
+            boolean more = out.position() > 0;
+            flushing = more;
+            key.interestOps(more ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            notifyAll();
+        }
+
+        synchronized void awaitDrained(long deadline) {
+            while(out.position() > 0 && !closed) {
+                long left = deadline - System.currentTimeMillis();
+                if(left <= 0) {
+                    return;
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+
+        // Selector thread only
+        void read() {
+            in.compact();
+            int n;
+            try {
+                n = channel.read(in);
+            } catch (IOException e) {
+                n = -1;
+            }
+            in.flip();
+            if(n < 0) {
+                close();
+                return;
+            }
+            int size;
+            while((size = WireCodec.frameSize(in)) > 0 && in.remaining() >= size) {
+                if(WireCodec.isHello(in)) {
+                    int count = WireCodec.decodeHello(in, ids);
+                    synchronized(routes) {
+                        for(int i = 0; i < count; i++) {
+                            routes.put(ids[i], this);
+                        }
+                        routes.notifyAll();
+                    }
+                } else {
+                    int to = WireCodec.receiver(in);
+                    Message m = WireCodec.decode(in);
+                    inbound.send(m.from, to, m);
+                }
+            }
+        }
+
+        synchronized void close() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            notifyAll();
+        }
+    }
+}
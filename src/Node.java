@@ -1,64 +1,371 @@
 
 import java.io.Serializable;
-import java.net.MalformedURLException;
-import java.rmi.Naming;
-import java.rmi.NotBoundException;
-import java.rmi.RemoteException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class Node implements Runnable, Serializable, INode {
-    private final List<Edge> edges;
+    private static final int NONE = -1; // edge index meaning no edge
+    private static final EdgeState[] EDGE_STATES = EdgeState.values();
+    private static final NodeState[] NODE_STATES = NodeState.values();
+    private static final int STATE_SIZE = 2 + 10 * 4 + 2 * 13; // a recorded state without edges, tests and messages
+    private static final int CREDITS = Integer.getInteger("ghs.link.credits", 4); // per link, 0 for no flow control
+
+    // Edges are addressed by their index in these arrays, which are sorted on increasing weight. They are only
+    // replaced when a finished tree is repaired, see setEdges.
+    private int[] neighbours; // the id of the node at the other end of each edge
+    private int[] weights; // the weight of each edge, ties are broken on the ids as in Weight
+    private byte[] edgeStates; // the ordinal of the EdgeState of each edge
+    private IntIndexMap edgeIndex; // neighbour id to edge index
+    private int testCursor = 0; // every edge below this index has already been classified
     private final Integer id;
+    private final int session; // the GHS execution this state belongs to, 0 for the node itself
+    private Map<Integer, Node> sessions; // the other executions this node takes part in, guarded by this
+    private Map<Integer, List<Message>> early; // messages of sessions that are not open here yet, guarded by this
+    private Set<Integer> closed; // sessions whose late messages are dropped, guarded by this
     private NodeState state = NodeState.SLEEPING;
     private Integer fragmentLevel = 0; // the level of the fragment this node belongs to
     private Weight fragmentName = null; // the name of the fragment this node belongs to
-    private Edge inBranch = null;  // the edge that leads to the fragment core
+    private int inBranch = NONE;  // the edge that leads to the fragment core
     private Integer findCount; // the number of reports still expected
-    private Edge bestEdge; // the edge leading towards the best candidate for the moe
+    private int bestEdge = NONE; // the edge leading towards the best candidate for the moe
     private Weight bestWeight; // the weight of the best candidate for the moe
-    private Edge testEdge; // the edge this node is currently testing for the moe
-    private Map<Edge, EdgeState> edgeStates;
-    private final Integer NETWORK_DELAY = 150;
-    private final ArrayList<ReportMessage> reportQueue;
-    private final ArrayList<ConnectMessage> connectQueue;
-    private final ArrayList<TestMessage> testQueue;
-
-    Node(Integer id, List<Integer> neighbourIds) {
+    private int testEdge = NONE; // the edge this node is currently testing for the moe
+    // Optional, see Optimizations
+    private final int testWindow; // the most edges tested at once
+    private int windowSize = 1; // the edges tested at once now, doubled after every Reject in this find phase
+    private BitSet testing; // the edges with a Test out, null while edges are tested one at a time
+    private int testsOut; // the number of those
+    private int testHigh; // every unknown edge below this index has been tested in this find phase
+    private int acceptedEdge = NONE; // the lightest edge accepted in this find phase
+    private final transient Transport transport; // carries messages to the neighbours, in order per link
+    private final transient Mailbox mailbox; // incoming messages, handled one at a time
+    private final ArrayDeque<ReportMessage> reportQueue;
+    private final HashMap<Integer, ConnectMessage> connectQueue; // deferred Connects by edge, at most one per edge
+    private final ArrayDeque<ConnectMessage> readyConnects; // deferred Connects that can be handled now
+    private final TreeMap<Integer, ArrayDeque<TestMessage>> testQueue; // deferred Tests by their fragment level
+    private final ArrayDeque<TestMessage> readyTests; // deferred Tests that can be handled now
+    private boolean checkingQueues = false; // true while the deferred messages are being re-examined
+    private boolean halted = false;
+    private transient MstCollector collector; // receives the branches of this node when it halts
+    private transient MstMaintainer maintainer; // hears when a repair of the tree is done
+    // Repairs run one at a time, so a node only keeps the marks of the latest one. Inserting an edge marks the tree
+    // path from each end point up to where the two paths meet.
+    private int markUpdate = -1; // the update the marks are of
+    private boolean markFirst; // marked by the first end point, whose path is marked up to the root
+    private int markDown; // the neighbour towards the end point, the other end point at the end point itself
+    private Weight markHeaviest; // the heaviest tree edge between the end point and this node, null for none
+    // Removing a branch searches the lightest edge out of the subtree that was cut off
+    private int searchUpdate = -1; // the update whose subtree this node is in
+    private int searchPending; // echoes or results still expected from the children, plus this node's own check
+    private int searchCursor; // the edge that is being checked
+    private Weight searchBest; // the lightest edge out of the subtree below this node, null for none
+    private int searchVia; // the child towards searchBest, or this node's id if it is one of its own edges
+    // Chandy-Lamport snapshots, see Checkpointer. A node records its state at the first marker of a snapshot, then
+    // every message that comes in over a link until the marker of that link arrives.
+    private transient Checkpointer checkpointer; // gets the finished records, null if this node takes no snapshots
+    private int lastSnapshot; // the latest snapshot this node has recorded
+    private Map<Integer, Recording> recordings; // snapshots still waiting for markers, null if there are none
+    private List<Message> replay; // the messages in flight in the snapshot this node was restored from
+    // Flow control, see send. Credits are counted per edge and follow the neighbour when the edges are replaced.
+    private int[] unacked; // messages sent over each edge that the neighbour has not handed the credit back for
+    private int[] unreturned; // messages handled from each neighbour whose credit has not been sent back yet
+    private Map<Integer, Held> held; // messages waiting for credit by neighbour id, null while none are
+    private final transient NodeMetrics metrics;
+
+    Node(Integer id, List<Integer> neighbourIds, Transport transport) {
+        this(id, neighbourIds.stream().mapToInt(Integer::intValue).toArray(), unitWeights(neighbourIds.size()), transport);
+    }
+
+    Node(int id, int[] neighbourIds, int[] edgeWeights, Transport transport) {
+        this(id, neighbourIds, edgeWeights, transport, 0, Metrics.GLOBAL.track(id));
+    }
+
+    private Node(int id, int[] neighbourIds, int[] edgeWeights, Transport transport, int session,
+                 NodeMetrics metrics) {
         this.id = id;
-        this.reportQueue = new ArrayList<>();
-        this.connectQueue = new ArrayList<>();
-        this.testQueue = new ArrayList<>();
-        // Create list of edges connected to this node
-        ArrayList<Edge> edges = new ArrayList<>();
-        neighbourIds.forEach(n -> {
-            if(id < n) { // current node is the lower id
-               edges.add(new Edge(id, n, new Weight(1, id, n)));
-            } else {
-                edges.add(new Edge(n, id, new Weight(1, n, id)));
+        this.session = session;
+        this.transport = transport;
+        this.mailbox = new Mailbox(transport.scheduler());
+        this.metrics = metrics;
+        this.reportQueue = new ArrayDeque<>();
+        this.connectQueue = new HashMap<>();
+        this.readyConnects = new ArrayDeque<>();
+        this.testQueue = new TreeMap<>();
+        this.readyTests = new ArrayDeque<>();
+        Optimizations optimizations = Optimizations.active();
+        this.testWindow = optimizations.testWindow;
+        this.testing = this.testWindow > 1 ? new BitSet() : null;
+        setEdges(neighbourIds, edgeWeights, new byte[neighbourIds.length]); // all UNKNOWN
+        Trace.event(TraceEvent.CREATED, id, neighbourIds.length, 0);
+    }
+
+    // Sorts the edges on increasing weight, ties broken on the lower and then the higher end point. The in-branch
+    // keeps pointing at the same neighbour; the other edge indices only matter while GHS runs.
+    private void setEdges(int[] neighbourIds, int[] edgeWeights, byte[] states) {
+        int parent = this.inBranch == NONE ? NONE : this.neighbours[this.inBranch];
+        IntIndexMap oldIndex = this.edgeIndex;
+        int[] oldUnacked = this.unacked;
+        int[] oldUnreturned = this.unreturned;
+        int degree = neighbourIds.length;
+        Integer[] order = new Integer[degree];
+        for(int i = 0; i < degree; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Weight.compare(
+                edgeWeights[a], Math.min(id, neighbourIds[a]), Math.max(id, neighbourIds[a]),
+                edgeWeights[b], Math.min(id, neighbourIds[b]), Math.max(id, neighbourIds[b])));
+        this.neighbours = new int[degree];
+        this.weights = new int[degree];
+        this.edgeStates = new byte[degree];
+        this.edgeIndex = new IntIndexMap(degree);
+        this.unacked = new int[degree];
+        this.unreturned = new int[degree];
+        for(int i = 0; i < degree; i++) {
+            int from = order[i];
+            if(neighbourIds[from] == id) {
+                throw new EdgeException("Source node and target node are equal");
             }
-        });
-        Collections.sort(edges);
-        this.edges = Collections.unmodifiableList(edges);
-        System.out.println(this.id + ": Created with edge list " + this.edges);
+            this.neighbours[i] = neighbourIds[from];
+            this.weights[i] = edgeWeights[from];
+            this.edgeStates[i] = states[from];
+            this.edgeIndex.put(neighbourIds[from], i);
+            int old = oldIndex == null ? NONE : oldIndex.get(neighbourIds[from]);
+            if(old != NONE) {
+                this.unacked[i] = oldUnacked[old];
+                this.unreturned[i] = oldUnreturned[old];
+            }
+        }
+        this.inBranch = parent == NONE ? NONE : this.edgeIndex.get(parent);
+        this.testCursor = 0;
+    }
+
+    // Every incoming message is only queued here. The handlers run one at a time on the node's mailbox, so they need
+    // no lock and the threads that deliver messages never block on a busy node. Messages that come in as separate
+    // RMI arguments are timed from their arrival, local and batched ones from when they were sent.
+
+    @Override
+    public void receiveInitiate(Integer id, Integer L, Weight F, NodeState S) {
+        receive(Message.initiate(id, L, F, S));
+    }
+
+    @Override
+    public void receiveTest(Integer from, Integer l, Weight FN) {
+        receive(Message.test(from, l, FN));
+    }
+
+    @Override
+    public void receiveAccept(Integer from) {
+        receive(Message.accept(from));
+    }
 
-        // Keep a list of states corresponding to the above edges
-        HashMap<Edge, EdgeState> edgeStates = new HashMap<>();
-        this.edges.forEach(e -> edgeStates.put(e, EdgeState.UNKNOWN));
-        this.edgeStates = Collections.unmodifiableMap(edgeStates);
+    @Override
+    public void receiveReject(Integer from) {
+        receive(Message.reject(from));
     }
 
     @Override
-    public synchronized void receiveInitiate(Integer id, Integer L, Weight F, NodeState S) {
+    public void receiveReport(Integer from, Weight w) {
+        receive(Message.report(from, w));
+    }
+
+    @Override
+    public void receiveConnect(Integer from, Integer value) {
+        receive(Message.connect(from, value));
+    }
+
+    @Override
+    public void receiveChangeRoot(Integer from) {
+        receive(Message.changeRoot(from));
+    }
+
+    @Override
+    public void receiveHalt(Integer from) {
+        receive(Message.halt(from));
+    }
+
+    @Override
+    public void receiveBatch(List<Message> messages) {
+        // Queued back to back, so they are handled in the order they were sent
+        for(Message m : messages) {
+            receive(m);
+        }
+    }
+
+    void receive(Message m) {
+        if(m.session != this.session) {
+            Node other = sessionFor(m);
+            if(other != null) {
+                other.receive(m);
+            }
+            return;
+        }
+        this.mailbox.post(() -> handle(m));
+    }
+
+    // Sessions run more GHS executions over the same nodes and transports, each with its own weights or subgraph,
+    // state and mailbox, so they run concurrently. Every message carries its session and the node the transports
+    // know routes it. A session has to be opened on every node of its graph before it is started on any of them;
+    // messages that arrive before it is open here are held until it is.
+    synchronized Node openSession(int session, int[] neighbourIds, int[] edgeWeights) {
+        if(session == this.session || (this.sessions != null && this.sessions.containsKey(session))) {
+            throw new RuntimeException("Node " + this.id + " already runs session " + session);
+        }
+        Node node = new Node(this.id, neighbourIds, edgeWeights, this.transport, session,
+                this.metrics.session(session));
+        if(this.sessions == null) {
+            this.sessions = new HashMap<>();
+        }
+        this.sessions.put(session, node);
+        if(this.closed != null) {
+            this.closed.remove(session);
+        }
+        List<Message> held = this.early == null ? null : this.early.remove(session);
+        if(held != null) {
+            held.forEach(node::receive);
+        }
+        return node;
+    }
+
+    // Forgets a session once its result is in. The Halts the two core nodes send each other may still arrive.
+    synchronized void closeSession(int session) {
+        if(this.sessions != null) {
+            this.sessions.remove(session);
+        }
+        if(this.early != null) {
+            this.early.remove(session);
+        }
+        if(this.closed == null) {
+            this.closed = new HashSet<>();
+        }
+        this.closed.add(session);
+    }
+
+    private synchronized Node sessionFor(Message m) {
+        Node node = this.sessions == null ? null : this.sessions.get(m.session);
+        if(node == null && (this.closed == null || !this.closed.contains(m.session))) {
+            if(this.early == null) {
+                this.early = new HashMap<>();
+            }
+            this.early.computeIfAbsent(m.session, s -> new ArrayList<>()).add(m);
+        }
+        return node;
+    }
+
+    private void handle(Message m) {
+        if(this.replay != null) {
+            replay();
+        }
+        if(this.recordings != null && m.type != MessageType.MARKER) {
+            for(Recording r : this.recordings.values()) {
+                if(r.waiting.contains(m.from)) {
+                    r.inFlight.add(m);
+                }
+            }
+        }
+        Metrics.GLOBAL.received(this.metrics, m);
+        Trace.event(TraceEvent.RECEIVE, this.id, m.from, m.type.ordinal());
+        switch (m.type) {
+            case INITIATE:
+                handleInitiate(m.from, m.level, m.weight, m.state);
+                break;
+            case TEST:
+                handleTest(m.from, m.level, m.weight);
+                break;
+            case ACCEPT:
+                handleAccept(m.from);
+                break;
+            case REJECT:
+                handleReject(m.from);
+                break;
+            case REPORT:
+                handleReport(m.from, m.weight);
+                break;
+            case CONNECT:
+                handleConnect(m.from, m.level);
+                break;
+            case CHANGE_ROOT:
+                handleChangeRoot(m.from);
+                break;
+            case HALT:
+                handleHalt(m.from);
+                break;
+            case ADD_EDGE:
+                handleAddEdge(m.from, m.level, m.edge);
+                break;
+            case REMOVE_EDGE:
+                handleRemoveEdge(m.from, m.level, m.state == NodeState.FIND);
+                break;
+            case REWEIGHT:
+                handleReweight(m.from, m.level, m.edge);
+                break;
+            case MARK_PATH:
+                handleMarkPath(m.from, m.level, m.weight, m.edge);
+                break;
+            case MARKED:
+                handleMarked(m.level, m.edge);
+                break;
+            case FIND_CYCLE:
+                handleFindCycle(m.from, m.level, m.weight, m.edge);
+                break;
+            case SWAP:
+                handleSwap(m.from, m.level, m.weight, m.edge);
+                break;
+            case REROOT:
+                reroot(m.level, m.edge);
+                break;
+            case BRANCH:
+                handleBranch(m.from, m.level);
+                break;
+            case SEARCH:
+                startSearch(m.level);
+                break;
+            case SEARCHED:
+                handleSearched(m.level);
+                break;
+            case FIND_REPLACEMENT:
+                findReplacement(m.level);
+                break;
+            case CHECK:
+                send(m.from, Message.repair(MessageType.CHECKED, this.id, this.searchUpdate));
+                break;
+            case CHECKED:
+                handleChecked(m.level);
+                break;
+            case BEST:
+                found(m.level, m.weight, m.from);
+                break;
+            case ATTACH:
+                attach(m.level);
+                break;
+            case MARKER:
+                handleMarker(m.from, m.level);
+                break;
+            case CREDIT:
+                handleCredit(m.from, m.level);
+                break;
+        }
+        if(CREDITS > 0 && isCredited(m.type)) {
+            handled(m.from);
+        }
+    }
+
+    private void handleInitiate(Integer id, Integer L, Weight F, NodeState S) {
         // Fragment IV
-        Edge j = identifyEdge(id);
+        int j = identifyEdge(id);
+        if(L != this.fragmentLevel) {
+            Trace.event(TraceEvent.LEVEL, this.id, L, 0);
+        }
         this.fragmentLevel = L;
+        Metrics.GLOBAL.level(L);
+        releaseConnects();
+        releaseTests();
         this.fragmentName = F;
         this.state = S;
         this.inBranch = j;
-        this.bestEdge = null;
+        this.bestEdge = NONE;
         this.bestWeight = Weight.INFINITE;
-        for(Edge i : this.edges)  {
-            if(!i.equals(j) && this.edgeStates.get(i) == EdgeState.IN_MST) {
+        for(int i = 0; i < this.neighbours.length; i++)  {
+            if(i != j && stateOf(i) == EdgeState.IN_MST) {
                 sendInitiate(i, L, F, S);
                 if(this.state == NodeState.FIND) {
                     findCount = findCount + 1;
@@ -66,90 +373,75 @@ public class Node implements Runnable, Serializable, INode {
             }
         }
         if(this.state == NodeState.FIND) {
+            this.testHigh = this.testCursor;
+            this.acceptedEdge = NONE;
+            this.windowSize = 1;
             test();
         }
-        checkReportQueue();
-        checkTestQueue();
+        checkQueues();
     }
 
-    @Override
-    public synchronized void receiveTest(Integer from, Integer l, Weight FN) {
+    private void handleTest(Integer from, Integer l, Weight FN) {
         // Fragment VI
         if(this.state == NodeState.SLEEPING) {
             wakeup();
         }
+        int j = identifyEdge(from);
         if(l > this.fragmentLevel) {
-            this.testQueue.add(new TestMessage(from, l, FN));
+            this.testQueue.computeIfAbsent(l, level -> new ArrayDeque<>()).add(new TestMessage(from, l, FN));
+            Trace.event(TraceEvent.DEFER, this.id, from, MessageType.TEST.ordinal());
         }
         else {
-            Edge j = identifyEdge(from);
             if(!FN.equals(this.fragmentName)) {
                 sendAccept(j);
             } else {
-                if(this.edgeStates.get(j) == EdgeState.UNKNOWN) {
+                if(stateOf(j) == EdgeState.UNKNOWN) {
                     this.updateEdgeState(j, EdgeState.NOT_IN_MST);
-                } else if (!j.equals(this.testEdge)) {
+                }
+                if (!isTesting(j)) {
                     sendReject(j);
                 } else {
+                    // The neighbour does not answer either, each takes the other's Test as the answer
+                    endTest(j);
                     test();
                 }
             }
         }
+        checkQueues();
     }
 
-    private void sendReject(Edge j) {
-        Integer receiveID = getReceiver(j);
-        INode receiver = findNode(receiveID);
-        if(receiver == null){
-            return;
-        }
-        Runnable send = () -> {
-            try {
-                Random random = new Random();
-                Thread.sleep(random.nextInt(NETWORK_DELAY));
-                receiver.receiveReject(this.id);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (InterruptedException ignored) {
-            }
-        };
-        new Thread(send).start();
-    }
-
-    private void sendAccept(Edge j) {
-       Integer receiverId = getReceiver(j);
-       INode receiver = findNode(receiverId);
-       if (receiver == null) {
-           return;
-       }
-       Runnable send = () -> {
-           try {
-               Random random = new Random();
-               Thread.sleep(random.nextInt(NETWORK_DELAY));
-               receiver.receiveAccept(this.id);
-           } catch (RemoteException e) {
-               e.printStackTrace();
-           } catch (InterruptedException ignored) {}
-       };
-       new Thread(send).start();
+    private void sendReject(int j) {
+        send(getReceiver(j), Message.reject(this.id));
     }
 
-    @Override
-    public synchronized void receiveAccept(Integer from) {
+    private void sendAccept(int j) {
+        send(getReceiver(j), Message.accept(this.id));
+    }
+
+    private void handleAccept(Integer from) {
         // Fragment VIII
-        Edge j = identifyEdge(from);
-        this.testEdge = null;
-        if(j.weight.compareTo(bestWeight) < 0) {
+        int j = identifyEdge(from);
+        if(this.testing != null) {
+            endTest(j);
+            if(this.acceptedEdge == NONE || j < this.acceptedEdge) {
+                this.acceptedEdge = j;
+            }
+            test();
+            checkQueues();
+            return;
+        }
+        this.testEdge = NONE;
+        if(lighterThan(j, bestWeight)) {
             this.bestEdge = j;
-            this.bestWeight = j.weight;
+            this.bestWeight = weightOf(j);
         }
         report();
-
+        checkQueues();
     }
 
     private void report() {
         // Fragment IX
-        if(this.findCount == 0 && this.testEdge == null) {
+        if(this.findCount == 0 && this.testEdge == NONE) {
             this.state = NodeState.FOUND;
             Integer receiver = getReceiver(inBranch);
             sendReport(receiver, this.bestWeight);
@@ -157,38 +449,25 @@ public class Node implements Runnable, Serializable, INode {
     }
 
     private void sendReport(Integer receiverId, Weight bestWeight) {
-        INode receiver = findNode(receiverId);
-        if(receiver == null) {
-            return;
-        }
-        Weight W = new Weight(bestWeight);
-        Runnable send = () -> {
-            try {
-                Random random = new Random();
-                Thread.sleep(random.nextInt(NETWORK_DELAY));
-                receiver.receiveReport(this.id, W);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (InterruptedException ignored) {}
-        };
-        new Thread(send).start();
+        send(receiverId, Message.report(this.id, bestWeight));
     }
 
-    @Override
-    public synchronized void receiveReject(Integer from) {
+    private void handleReject(Integer from) {
         // Fragment VII
-        Edge j = identifyEdge(from);
-        if(this.edgeStates.get(j) == EdgeState.UNKNOWN) {
+        int j = identifyEdge(from);
+        if(stateOf(j) == EdgeState.UNKNOWN) {
             this.updateEdgeState(j, EdgeState.NOT_IN_MST);
         }
+        endTest(j);
+        this.windowSize = Math.min(2 * this.windowSize, this.testWindow);
         test();
+        checkQueues();
     }
 
-    @Override
-    public synchronized void receiveReport(Integer from, Weight w) {
+    private void handleReport(Integer from, Weight w) {
         // Fragment X
-        Edge j = identifyEdge(from);
-        if(!j.equals(inBranch)) {
+        int j = identifyEdge(from);
+        if(j != inBranch) {
             this.findCount -= 1;
             if(w.compareTo(bestWeight) < 0) {
                 bestWeight = w;
@@ -198,6 +477,7 @@ public class Node implements Runnable, Serializable, INode {
         } else {
             if(this.state == NodeState.FIND) {
                 this.reportQueue.add(new ReportMessage(from, w));
+                Trace.event(TraceEvent.DEFER, this.id, from, MessageType.REPORT.ordinal());
             } else {
                 if(w.compareTo(bestWeight) > 0) {
                     changeRoot();
@@ -208,11 +488,12 @@ public class Node implements Runnable, Serializable, INode {
                 }
             }
         }
+        checkQueues();
     }
 
     private void changeRoot() {
         // Fragment XI
-        if(this.edgeStates.get(bestEdge) == EdgeState.IN_MST) {
+        if(stateOf(bestEdge) == EdgeState.IN_MST) {
             sendChangeRoot(bestEdge);
         } else {
             this.sendConnect(bestEdge, this.fragmentLevel);
@@ -220,237 +501,1028 @@ public class Node implements Runnable, Serializable, INode {
         }
     }
 
-    private void sendChangeRoot(Edge j) {
-        Integer receiverID = getReceiver(j);
-        INode receiver = findNode(receiverID);
-        if(receiver == null) {
-            return;
-        }
-        Runnable send = () -> {
-            try {
-                Random random = new Random();
-                Thread.sleep(random.nextInt(NETWORK_DELAY));
-                receiver.receiveChangeRoot(this.id);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (InterruptedException ignored) {
-            }
-        };
-        new Thread(send).start();
+    private void sendChangeRoot(int j) {
+        send(getReceiver(j), Message.changeRoot(this.id));
     }
 
     private void HALT() {
-        // TODO
-        // misschien iets van een flag zodat er niet meer iets gedaan wordt met berichten?
-        System.out.println("HALT!");
+        Metrics.GLOBAL.halted();
+        halt(NONE);
     }
 
-    @Override
-    public synchronized void receiveConnect(Integer from, Integer value) {
+    private void handleHalt(Integer from) {
+        halt(identifyEdge(from));
+    }
+
+    // Passes termination on down the branches, so every node learns it, then hands the branches to the collector
+    private void halt(int from) {
+        if(this.halted) {
+            return; // both core nodes detect termination and tell each other
+        }
+        this.halted = true;
+        Trace.event(TraceEvent.HALT, this.id);
+        for(int i = 0; i < this.neighbours.length; i++) {
+            if(i != from && stateOf(i) == EdgeState.IN_MST) {
+                send(getReceiver(i), Message.halt(this.id));
+            }
+        }
+        // No message is in flight any more, so nothing deferred can be handled ever
+        this.reportQueue.clear();
+        this.testQueue.clear();
+        this.readyTests.clear();
+        this.connectQueue.clear();
+        this.readyConnects.clear();
+        if(this.collector != null) {
+            this.collector.halted(this.id, branches());
+        }
+    }
+
+    private void handleConnect(Integer from, Integer value) {
         // Fragment III
         if(this.state == NodeState.SLEEPING) {
             wakeup();
         }
-        Edge j = identifyEdge(from);
+        int j = identifyEdge(from);
         if(value < this.fragmentLevel) {
             updateEdgeState(j, EdgeState.IN_MST);
             sendInitiate(j, fragmentLevel, fragmentName, state);
+            if(this.state == NodeState.FIND) {
+                findCount = findCount + 1;
+            }
         } else {
-            if(this.edgeStates.get(j) == EdgeState.UNKNOWN) {
-                this.connectQueue.add(new ConnectMessage(from, value, j));
+            if(stateOf(j) == EdgeState.UNKNOWN) {
+                this.connectQueue.put(j, new ConnectMessage(from, value, j));
+                Trace.event(TraceEvent.DEFER, this.id, from, MessageType.CONNECT.ordinal());
             } else {
-                sendInitiate(j, fragmentLevel + 1, j.weight, NodeState.FIND);
+                sendInitiate(j, fragmentLevel + 1, weightOf(j), NodeState.FIND);
+            }
+        }
+        checkQueues();
+    }
+
+    private void sendInitiate(int j, Integer fragmentLevel, Weight fragmentName, NodeState state) {
+        send(getReceiver(j), Message.initiate(this.id, fragmentLevel, fragmentName, state));
+    }
+
+    private void handleChangeRoot(Integer from) {
+       changeRoot();
+       checkQueues();
+    }
+
+    // Repairs of a tree that GHS has finished, started by an MstMaintainer one update at a time. The tree is rooted:
+    // every in-branch points towards the root, which has none or is one of the two core nodes that point at each
+    // other. Only the nodes on the cycle an added edge closes, or in the subtree a removed branch cuts off, take part.
+
+    void insertEdge(int to, int weight, int update) {
+        this.mailbox.post(() -> {
+            if(!canRepair(update)) {
+                return;
+            } else if(to == this.id || this.edgeIndex.get(to) != NONE) {
+                this.maintainer.failed(update, "Node " + this.id + " cannot add another edge to " + to);
+                return;
+            }
+            addEdge(to, weight);
+            send(to, Message.addEdge(this.id, update, weightOf(identifyEdge(to))));
+        });
+    }
+
+    void removeEdge(int to, int update) {
+        this.mailbox.post(() -> {
+            if(!canRepair(update)) {
+                return;
+            } else if(this.edgeIndex.get(to) == NONE) {
+                this.maintainer.failed(update, "Node " + this.id + " has no edge to " + to);
+                return;
+            }
+            int j = identifyEdge(to);
+            boolean branch = stateOf(j) == EdgeState.IN_MST;
+            // The end below the branch searches; if both ends point at each other they were the core and this one does
+            boolean search = branch && this.inBranch == j;
+            dropEdge(j);
+            send(to, Message.removeEdge(this.id, update, branch && !search));
+            if(search) {
+                startSearch(update);
+            }
+        });
+    }
+
+    // Only for changes that cannot move the edge in or out of the tree, MstMaintainer turns the others into a
+    // removal and an insertion
+    void changeWeight(int to, int weight, int update) {
+        this.mailbox.post(() -> {
+            if(!canRepair(update)) {
+                return;
+            } else if(this.edgeIndex.get(to) == NONE) {
+                this.maintainer.failed(update, "Node " + this.id + " has no edge to " + to);
+                return;
             }
+            setWeight(identifyEdge(to), weight);
+            send(to, Message.reweight(this.id, update, weightOf(identifyEdge(to))));
+        });
+    }
+
+    private boolean canRepair(int update) {
+        if(!this.halted) {
+            this.maintainer.failed(update, "Node " + this.id + " has not halted yet");
+        }
+        return this.halted;
+    }
+
+    private void handleAddEdge(Integer from, int update, Weight edge) {
+        addEdge(from, edge.value());
+        // This end point marks its path up to the root, then the other one climbs until it meets a mark
+        handleMarkPath(from, update, null, edge);
+    }
+
+    private void handleRemoveEdge(Integer from, int update, boolean search) {
+        int j = identifyEdge(from);
+        boolean branch = stateOf(j) == EdgeState.IN_MST;
+        dropEdge(j);
+        if(search) {
+            startSearch(update);
+        } else if(!branch) {
+            complete(update);
+        }
+    }
+
+    private void handleReweight(Integer from, int update, Weight edge) {
+        setWeight(identifyEdge(from), edge.value());
+        complete(update);
+    }
+
+    private void handleMarkPath(Integer from, int update, Weight heaviest, Weight edge) {
+        mark(update, true, from, heavier(heaviest, from));
+        if(isRoot(from)) {
+            handleMarked(update, edge);
+        } else {
+            send(getReceiver(this.inBranch), Message.markPath(this.id, update, this.markHeaviest, edge));
         }
+    }
 
+    // The first path is marked up to the root. The word goes back down it, and its end point starts the other climb.
+    private void handleMarked(int update, Weight edge) {
+        if(isEndPoint()) {
+            send(this.markDown, Message.findCycle(this.id, update, null, edge));
+        } else {
+            send(this.markDown, Message.marked(this.id, update, edge));
+        }
     }
 
-    private void sendInitiate(Edge j, Integer fragmentLevel, Weight fragmentName, NodeState state) {
-        Integer receiverID = getReceiver(j);
-        INode receiver = findNode(receiverID);
-        if (receiver == null) {
+    private void handleFindCycle(Integer from, int update, Weight heaviest, Weight edge) {
+        heaviest = heavier(heaviest, from);
+        if(this.markUpdate == update && this.markFirst) {
+            // The paths meet here, together with the new edge they are the cycle it closes
+            Weight first = this.markHeaviest;
+            Weight cycleMax = first == null || (heaviest != null && heaviest.compareTo(first) > 0) ? heaviest : first;
+            if(cycleMax == null || edge.compareTo(cycleMax) > 0) {
+                complete(update); // the new edge is the heaviest on its cycle and stays out of the tree
+            } else if(cycleMax == first) {
+                sendSwap(this.markDown, update, cycleMax, edge);
+            } else {
+                sendSwap(from, update, cycleMax, edge);
+            }
             return;
         }
-        Weight FN = new Weight(fragmentName);
+        mark(update, false, from, heaviest);
+        if(isRoot(from)) {
+            // The first path never came by, so the end points were in different trees and the new edge joins them
+            reroot(update, edge);
+        } else {
+            send(getReceiver(this.inBranch), Message.findCycle(this.id, update, heaviest, edge));
+        }
+    }
 
-        Runnable send = () -> {
-            try {
-                Random random = new Random();
-                Thread.sleep(random.nextInt(NETWORK_DELAY));
-                receiver.receiveInitiate(this.id, fragmentLevel, FN, state);
-            } catch (InterruptedException ignored) {
-            } catch (RemoteException e) {
-                e.printStackTrace();
+    // Passes the swap down towards an end point. The end above the heaviest edge takes it out of the tree.
+    private void sendSwap(int to, int update, Weight heaviest, Weight edge) {
+        int j = identifyEdge(to);
+        if(weightOf(j).equals(heaviest)) {
+            updateEdgeState(j, EdgeState.NOT_IN_MST);
+            if(this.inBranch == j) {
+                this.inBranch = NONE; // it was the core edge, this end is the root now
             }
-        };
-        new Thread(send).start();
+        }
+        send(to, Message.swap(this.id, update, heaviest, edge));
     }
 
-    @Override
-    public synchronized void receiveChangeRoot(Integer from) {
-       changeRoot();
+    private void handleSwap(Integer from, int update, Weight heaviest, Weight edge) {
+        int j = identifyEdge(from);
+        if(weightOf(j).equals(heaviest)) {
+            // Cut off below the heaviest edge, the part down to the end point now hangs from the new edge
+            updateEdgeState(j, EdgeState.NOT_IN_MST);
+            reroot(update, edge);
+        } else {
+            sendSwap(this.markDown, update, heaviest, edge);
+        }
+    }
+
+    // Turns the in-branch towards the end point, which itself hangs from the new edge
+    private void reroot(int update, Weight edge) {
+        int j = identifyEdge(this.markDown);
+        this.inBranch = j;
+        if(stateOf(j) == EdgeState.IN_MST) {
+            send(this.markDown, Message.reroot(this.id, update, edge));
+        } else {
+            updateEdgeState(j, EdgeState.IN_MST);
+            send(this.markDown, Message.repair(MessageType.BRANCH, this.id, update));
+        }
+    }
+
+    private void handleBranch(Integer from, int update) {
+        updateEdgeState(identifyEdge(from), EdgeState.IN_MST);
+        complete(update);
+    }
+
+    private void mark(int update, boolean first, int down, Weight heaviest) {
+        this.markUpdate = update;
+        this.markFirst = first;
+        this.markDown = down;
+        this.markHeaviest = heaviest;
+    }
+
+    // The heaviest tree edge of a path up to this node. The edge it came in on counts, unless it is the new edge.
+    private Weight heavier(Weight heaviest, int from) {
+        int j = identifyEdge(from);
+        if(stateOf(j) != EdgeState.IN_MST || (heaviest != null && lighterThan(j, heaviest))) {
+            return heaviest;
+        }
+        return weightOf(j);
+    }
+
+    // A climb from below stops at the root: the node without in-branch, or the core node it reached over the core edge
+    private boolean isRoot(int from) {
+        return this.inBranch == NONE || getReceiver(this.inBranch) == from;
+    }
+
+    // An end point of the new edge, marked with the other end point as the way down
+    private boolean isEndPoint() {
+        return stateOf(identifyEdge(this.markDown)) != EdgeState.IN_MST;
+    }
+
+    // This node hangs below a removed branch. It first tells its whole subtree so, so that afterwards a single check
+    // tells whether an edge leads out of the subtree.
+    private void startSearch(int update) {
+        this.searchUpdate = update;
+        this.searchPending = 0;
+        for(int i = 0; i < this.neighbours.length; i++) {
+            if(i != this.inBranch && stateOf(i) == EdgeState.IN_MST) {
+                send(getReceiver(i), Message.repair(MessageType.SEARCH, this.id, update));
+                this.searchPending++;
+            }
+        }
+        if(this.searchPending == 0) {
+            searched(update);
+        }
+    }
+
+    private void handleSearched(int update) {
+        if(--this.searchPending == 0) {
+            searched(update);
+        }
+    }
+
+    private void searched(int update) {
+        if(this.inBranch == NONE) {
+            findReplacement(update); // the top of the subtree, which has lost its in-branch
+        } else {
+            send(getReceiver(this.inBranch), Message.repair(MessageType.SEARCHED, this.id, update));
+        }
+    }
+
+    private void findReplacement(int update) {
+        this.searchBest = null;
+        this.searchPending = 1;
+        for(int i = 0; i < this.neighbours.length; i++) {
+            if(i != this.inBranch && stateOf(i) == EdgeState.IN_MST) {
+                send(getReceiver(i), Message.repair(MessageType.FIND_REPLACEMENT, this.id, update));
+                this.searchPending++;
+            }
+        }
+        this.searchCursor = -1;
+        checkNext();
+    }
+
+    // Edges are sorted on weight, so the first one that leads out of the subtree is this node's lightest
+    private void checkNext() {
+        do {
+            this.searchCursor++;
+        } while(this.searchCursor < this.neighbours.length && stateOf(this.searchCursor) == EdgeState.IN_MST);
+        if(this.searchCursor < this.neighbours.length) {
+            send(getReceiver(this.searchCursor), Message.repair(MessageType.CHECK, this.id, this.searchUpdate));
+        } else {
+            found(this.searchUpdate, null, this.id);
+        }
+    }
+
+    // The neighbour answered with the update whose subtree it is in
+    private void handleChecked(int update) {
+        if(update == this.searchUpdate) {
+            checkNext();
+        } else {
+            found(this.searchUpdate, weightOf(this.searchCursor), this.id);
+        }
+    }
+
+    private void found(int update, Weight w, int via) {
+        if(w != null && (this.searchBest == null || w.compareTo(this.searchBest) < 0)) {
+            this.searchBest = w;
+            this.searchVia = via;
+        }
+        if(--this.searchPending > 0) {
+            return;
+        } else if(this.inBranch != NONE) {
+            send(getReceiver(this.inBranch), Message.best(this.id, update, this.searchBest));
+        } else if(this.searchBest == null) {
+            complete(update); // no edge leads out, the graph has fallen apart and the subtree is a tree of its own
+        } else {
+            attach(update);
+        }
+    }
+
+    // Turns the in-branches towards the replacement edge, which becomes the branch the subtree hangs from
+    private void attach(int update) {
+        if(this.searchVia == this.id) {
+            this.inBranch = this.searchCursor;
+            updateEdgeState(this.searchCursor, EdgeState.IN_MST);
+            send(getReceiver(this.searchCursor), Message.repair(MessageType.BRANCH, this.id, update));
+        } else {
+            this.inBranch = identifyEdge(this.searchVia);
+            send(this.searchVia, Message.repair(MessageType.ATTACH, this.id, update));
+        }
+    }
+
+    private void complete(int update) {
+        if(this.maintainer != null) {
+            this.maintainer.completed(update);
+        }
+    }
+
+    private void addEdge(int to, int weight) {
+        int degree = this.neighbours.length;
+        byte[] states = Arrays.copyOf(this.edgeStates, degree + 1);
+        states[degree] = (byte) EdgeState.NOT_IN_MST.ordinal();
+        int[] ids = Arrays.copyOf(this.neighbours, degree + 1);
+        ids[degree] = to;
+        int[] ws = Arrays.copyOf(this.weights, degree + 1);
+        ws[degree] = weight;
+        setEdges(ids, ws, states);
+    }
+
+    private void dropEdge(int j) {
+        int degree = this.neighbours.length;
+        int[] ids = new int[degree - 1];
+        int[] ws = new int[degree - 1];
+        byte[] states = new byte[degree - 1];
+        for(int i = 0, k = 0; i < degree; i++) {
+            if(i != j) {
+                ids[k] = this.neighbours[i];
+                ws[k] = this.weights[i];
+                states[k++] = this.edgeStates[i];
+            }
+        }
+        setEdges(ids, ws, states); // drops the in-branch too if it was this edge
+    }
+
+    private void setWeight(int j, int weight) {
+        int[] ws = this.weights.clone();
+        ws[j] = weight;
+        setEdges(this.neighbours, ws, this.edgeStates);
     }
 
     @Override
     public void run() {
         // Code Fragment I : spontaneously starting
+        open();
         Random random = new Random();
         try {
             Thread.sleep(random.nextInt(1000));
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        synchronized (this) {
+        spontaneousStart();
+    }
+
+    // Lets the transport set up the links to the neighbours
+    void open() {
+        this.transport.open(this.id, neighbourIds());
+    }
+
+    void spontaneousStart() {
+        this.mailbox.post(() -> {
+            if(this.replay != null) {
+                replay();
+            }
             if(this.state == NodeState.SLEEPING) {
                 wakeup();
             }
-        }
+            checkQueues();
+        });
     }
 
     private void wakeup() {
         // Code Fragment II : Waking up
-        System.out.println(this.id + ": Waking up");
-        Edge j = this.edges.get(0); // Edge list should be sorted on increasing weight
-        updateEdgeState(j, EdgeState.IN_MST);
+        Trace.event(TraceEvent.WAKEUP, this.id);
+        Metrics.GLOBAL.started();
+        int j = 0; // Edges are sorted on increasing weight
+        this.state = NodeState.FOUND;
         this.findCount = 0;
+        updateEdgeState(j, EdgeState.IN_MST);
         sendConnect(j, 0);
     }
 
-    private void sendConnect(Edge e, Integer value) {
-        Integer receiverId = getReceiver(e);
-        INode receiver = findNode(receiverId);
-        if(receiver == null) {
-            return; // is just nothing doing anything reasonable? what is a reasonable fallback?
-        }
-        Runnable send = () -> {
-            try {
-                Random random = new Random();
-                Thread.sleep(random.nextInt(NETWORK_DELAY));
-                receiver.receiveConnect(this.id, value);
-            } catch (InterruptedException ignored) {
-            } catch (RemoteException e1) {
-                e1.printStackTrace();
-            }
-        };
-        new Thread(send).start();
+    private void sendConnect(int e, Integer value) {
+        send(getReceiver(e), Message.connect(this.id, value));
     }
 
     private void test() {
         // Fragment V
-        for(Edge e : this.edges) {
-            if(this.edgeStates.get(e) == EdgeState.UNKNOWN) {
-                this.testEdge = e;
-                sendTest(e, fragmentLevel, fragmentName);
-                return;
+        if(this.testing != null) {
+            testWindow();
+            return;
+        }
+        // Edges never go back to UNKNOWN, so the search resumes where the previous one stopped
+        while(this.testCursor < this.neighbours.length && stateOf(this.testCursor) != EdgeState.UNKNOWN) {
+            this.testCursor++;
+        }
+        if(this.testCursor < this.neighbours.length) {
+            this.testEdge = this.testCursor;
+            sendTest(this.testEdge, fragmentLevel, fragmentName);
+            return;
+        }
+        this.testEdge = NONE;
+        report();
+    }
+
+    // Tests several of the lightest unknown edges at once: one at the start of a find phase, twice as many after every
+    // Reject, up to testWindow. The lightest accepted edge is the candidate once all lighter ones are rejected, but the
+    // node only reports when every Test it sent is answered, so that no answer is left over for the next phase. A
+    // Test on an edge the other end defers holds up the report, which is the price of the shorter rounds.
+    private void testWindow() {
+        while(this.testCursor < this.neighbours.length && stateOf(this.testCursor) != EdgeState.UNKNOWN) {
+            this.testCursor++;
+        }
+        int limit = this.acceptedEdge == NONE ? this.neighbours.length : this.acceptedEdge;
+        int i = Math.max(this.testCursor, this.testHigh);
+        for(; i < limit && this.testsOut < this.windowSize; i++) {
+            if(stateOf(i) == EdgeState.UNKNOWN) {
+                this.testing.set(i);
+                this.testsOut++;
+                sendTest(i, fragmentLevel, fragmentName);
             }
         }
-        this.testEdge = null;
+        this.testHigh = i;
+        if(this.testsOut > 0) {
+            this.testEdge = this.testing.nextSetBit(0); // not NONE, so report waits
+            return;
+        }
+        this.testEdge = NONE;
+        if(this.acceptedEdge != NONE && lighterThan(this.acceptedEdge, this.bestWeight)) {
+            this.bestEdge = this.acceptedEdge;
+            this.bestWeight = weightOf(this.acceptedEdge);
+        }
         report();
     }
 
-    private void sendTest(Edge e, Integer fragmentLevel, Weight fragmentName) {
-        Integer receiverId = getReceiver(e);
-        INode receiver = findNode(receiverId);
-        if(receiver == null) {
+    private boolean isTesting(int j) {
+        return this.testing == null ? j == this.testEdge : this.testing.get(j);
+    }
+
+    private void endTest(int j) {
+        if(this.testing != null && this.testing.get(j)) {
+            this.testing.clear(j);
+            this.testsOut--;
+        }
+    }
+
+    private void sendTest(int e, Integer fragmentLevel, Weight fragmentName) {
+        send(getReceiver(e), Message.test(this.id, fragmentLevel, fragmentName));
+    }
+
+    // A link carries at most CREDITS messages the neighbour has not handled yet, so however slow it is, its mailbox
+    // holds no more than that per edge. Further messages wait here in order until the neighbour hands credits back,
+    // which it does once it has handled a full window. Nothing blocks: a handler that runs out of credit carries on,
+    // and the credits come back from handlers that never wait either. Markers and credits need no credit.
+    //
+    // The messages waiting here are not capped, as capping them would mean blocking or dropping. GHS bounds them
+    // instead: a node sends each neighbour only a few messages per fragment level, Test, Accept or Reject, Initiate,
+    // Report, Connect and Change-root, so no more can pile up behind one edge. In simulated runs on power-law and
+    // random graphs no edge had more than 2 waiting, even with a single credit.
+    private void send(Integer receiverId, Message message) {
+        message.session = this.session;
+        Metrics.GLOBAL.sent(this.metrics, message.type);
+        Trace.event(TraceEvent.SEND, this.id, receiverId, message.type.ordinal());
+        int j = CREDITS > 0 && isCredited(message.type) ? this.edgeIndex.get(receiverId) : NONE;
+        if(j != NONE) {
+            Held waiting = this.held == null ? null : this.held.get(receiverId);
+            if(waiting != null || this.unacked[j] >= CREDITS) {
+                hold(receiverId, message, waiting);
+                return;
+            }
+            this.unacked[j]++;
+        }
+        transport.send(this.id, receiverId, message);
+    }
+
+    private static boolean isCredited(MessageType type) {
+        return type != MessageType.MARKER && type != MessageType.CREDIT;
+    }
+
+    private void hold(Integer receiverId, Message message, Held waiting) {
+        if(waiting == null) {
+            waiting = new Held(Metrics.GLOBAL.now());
+            if(this.held == null) {
+                this.held = new HashMap<>();
+            }
+            this.held.put(receiverId, waiting);
+        }
+        waiting.messages.add(message);
+    }
+
+    // Called after every credited message from the neighbour has been handled. The credits go back a window at a
+    // time: a neighbour that has sent fewer still has credit left, one that has sent a full window gets it all back
+    // once the last of them is handled.
+    private void handled(int from) {
+        int j = this.edgeIndex.get(from);
+        if(j == NONE || ++this.unreturned[j] < CREDITS) {
+            return;
+        }
+        send(from, Message.credit(this.id, this.unreturned[j]));
+        this.unreturned[j] = 0;
+    }
+
+    private void handleCredit(int from, int count) {
+        int j = this.edgeIndex.get(from);
+        if(j != NONE) {
+            this.unacked[j] = Math.max(0, this.unacked[j] - count);
+            release(from, j);
+        }
+    }
+
+    // Sends the waiting messages of an edge that its credit allows
+    private void release(int neighbour, int j) {
+        Held waiting = this.held == null ? null : this.held.get(neighbour);
+        if(waiting == null) {
             return;
         }
-        Runnable send = () -> {
-            try {
-                Random random = new Random();
-                Thread.sleep(random.nextInt(NETWORK_DELAY));
-                receiver.receiveTest(this.id, fragmentLevel, fragmentName);
-            } catch (InterruptedException ignored) {
-            } catch (RemoteException e1) {
-                e1.printStackTrace();
+        while(!waiting.messages.isEmpty() && this.unacked[j] < CREDITS) {
+            this.unacked[j]++;
+            transport.send(this.id, neighbour, waiting.messages.poll());
+        }
+        if(waiting.messages.isEmpty()) {
+            this.held.remove(neighbour);
+            if(this.held.isEmpty()) {
+                this.held = null;
             }
-        };
-        new Thread(send).start();
+            Metrics.GLOBAL.linkStalled(Metrics.GLOBAL.now() - waiting.since);
+        }
     }
 
-    private void updateEdgeState(Edge edge, EdgeState state) {
-        Map<Edge, EdgeState> tempMap = new HashMap<>(this.edgeStates);
-        tempMap.put(edge, state);
-        this.edgeStates = Collections.unmodifiableMap(tempMap);
-        checkConnectQueue();
+    private void updateEdgeState(int edge, EdgeState state) {
+        this.edgeStates[edge] = (byte) state.ordinal();
+        // Only a Connect waiting on this edge can be handled now
+        ConnectMessage m = this.connectQueue.remove(edge);
+        if(m != null) {
+            this.readyConnects.add(m);
+        }
+    }
 
+    private EdgeState stateOf(int edge) {
+        return EDGE_STATES[this.edgeStates[edge]];
     }
 
-    private Integer getReceiver(Edge e) {
-        if(e.source.equals(this.id)) {
-            return e.target;
-        } else if (e.target.equals(this.id)) {
-            return e.source;
-        } else {
-            // this should never happen
-            throw new RuntimeException("Current node " + this.id + " is not connected to edge");
+    private Weight weightOf(int edge) {
+        int neighbour = this.neighbours[edge];
+        return new Weight(this.weights[edge], Math.min(this.id, neighbour), Math.max(this.id, neighbour));
+    }
+
+    private boolean lighterThan(int edge, Weight w) {
+        int neighbour = this.neighbours[edge];
+        return w.compareTo(this.weights[edge], Math.min(this.id, neighbour), Math.max(this.id, neighbour)) > 0;
+    }
+
+    private Integer getReceiver(int edge) {
+        return this.neighbours[edge];
+    }
+
+    int identifyEdge(Integer from) {
+        int edge = this.edgeIndex.get(from);
+        if(edge == NONE) {
+            throw new RuntimeException("Node " + this.id + " is not familiar with an edge to " + from);
         }
+        return edge;
     }
 
-    private INode findNode(Integer nodeId) {
-        INode node = null;
-        try {
-            node = (INode) Naming.lookup("//localhost:1099/p" + nodeId);
-        } catch (NotBoundException e) {
-            try {
-                node = (INode) Naming.lookup("//ip:1099/p" + nodeId);
-            } catch (NotBoundException | MalformedURLException | RemoteException ignored) {}
-        } catch (MalformedURLException | RemoteException ignored) {}
-        return node;
+    private List<Integer> neighbourIds() {
+        List<Integer> ids = new ArrayList<>(this.neighbours.length);
+        for(int n : this.neighbours) {
+            ids.add(n);
+        }
+        return ids;
     }
 
-    private Edge identifyEdge(Integer from) {
-        for (Edge e : this.edges) {
-            if (e.source.equals(from) || e.target.equals(from)) {
-                return e;
+    List<Edge> branches() {
+        List<Edge> edges = new ArrayList<>();
+        for(int i = 0; i < this.neighbours.length; i++) {
+            if(stateOf(i) == EdgeState.IN_MST) {
+                edges.add(new Edge(Math.min(this.id, this.neighbours[i]), Math.max(this.id, this.neighbours[i]),
+                        weightOf(i)));
             }
         }
-        throw new RuntimeException("Node " + this.id + " is not familiar with an edge to " + from);
+        return edges;
+    }
+
+    private static int[] unitWeights(int degree) {
+        int[] weights = new int[degree];
+        Arrays.fill(weights, 1);
+        return weights;
+    }
+
+    void reportTo(MstCollector collector) {
+        this.collector = collector;
+    }
+
+    void checkpointTo(Checkpointer checkpointer, int lastSnapshot) {
+        this.checkpointer = checkpointer;
+        this.lastSnapshot = lastSnapshot;
+    }
+
+    // Starts a snapshot here, unless a marker has already made this node record it
+    void checkpoint(int snapshot) {
+        this.mailbox.post(() -> recordUpTo(snapshot));
+    }
+
+    // Snapshots are numbered in the order they are started. One that this node has not seen a marker of yet is
+    // recorded along with the later one, which is as good as starting it spontaneously right now.
+    private void recordUpTo(int snapshot) {
+        while(this.lastSnapshot < snapshot) {
+            record(++this.lastSnapshot);
+        }
+    }
+
+    private void record(int snapshot) {
+        Recording r = new Recording(encodeState(), neighbourIds());
+        for(int neighbour : this.neighbours) {
+            send(neighbour, Message.marker(this.id, snapshot));
+        }
+        if(r.waiting.isEmpty()) {
+            written(snapshot, r);
+            return;
+        }
+        if(this.recordings == null) {
+            this.recordings = new HashMap<>();
+        }
+        this.recordings.put(snapshot, r);
+    }
+
+    private void handleMarker(int from, int snapshot) {
+        recordUpTo(snapshot);
+        if(this.recordings == null) {
+            return;
+        }
+        Iterator<Map.Entry<Integer, Recording>> it = this.recordings.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Integer, Recording> e = it.next();
+            Recording r = e.getValue();
+            if(e.getKey() > snapshot || !r.waiting.remove(from)) {
+                continue;
+            } else if(e.getKey() < snapshot) {
+                it.remove(); // links are FIFO, so the neighbour has skipped that snapshot and it cannot complete
+            } else if(r.waiting.isEmpty()) {
+                it.remove();
+                written(snapshot, r);
+            }
+        }
+        if(this.recordings.isEmpty()) {
+            this.recordings = null;
+        }
+    }
+
+    private void written(int snapshot, Recording r) {
+        if(this.checkpointer == null) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(r.state.length + messagesSize(r.inFlight));
+        record.put(r.state);
+        putMessages(record, r.inFlight);
+        record.flip();
+        this.checkpointer.recorded(snapshot, this.id, record);
+    }
+
+    // The GHS state and the deferred messages. The edges come from the graph again on a restart, so only their states
+    // are kept, four to a byte.
+    private byte[] encodeState() {
+        List<Message> deferred = new ArrayList<>();
+        this.reportQueue.forEach(r -> deferred.add(Message.report(r.from, r.weight)));
+        this.testQueue.values().forEach(q -> q.forEach(t -> deferred.add(Message.test(t.from, t.level, t.weight))));
+        this.readyTests.forEach(t -> deferred.add(Message.test(t.from, t.level, t.weight)));
+        this.connectQueue.values().forEach(c -> deferred.add(Message.connect(c.from, c.value)));
+        this.readyConnects.forEach(c -> deferred.add(Message.connect(c.from, c.value)));
+        int degree = this.neighbours.length;
+        int heldSize = 4;
+        if(this.held != null) {
+            for(Held waiting : this.held.values()) {
+                heldSize += messagesSize(waiting.messages) - 4;
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(STATE_SIZE + 4 * this.testsOut + (degree + 3) / 4 + 8 * degree +
+                messagesSize(deferred) + heldSize);
+        out.put((byte) this.state.ordinal());
+        out.put((byte) (this.halted ? 1 : 0));
+        out.putInt(this.fragmentLevel);
+        putWeight(out, this.fragmentName);
+        out.putInt(this.findCount == null ? -1 : this.findCount);
+        out.putInt(this.inBranch);
+        out.putInt(this.bestEdge);
+        out.putInt(this.testEdge);
+        out.putInt(this.testCursor);
+        out.putInt(this.testHigh);
+        out.putInt(this.acceptedEdge);
+        out.putInt(this.testsOut);
+        for(int j = this.testing == null ? -1 : this.testing.nextSetBit(0); j >= 0; j = this.testing.nextSetBit(j + 1)) {
+            out.putInt(j);
+        }
+        putWeight(out, this.bestWeight);
+        out.putInt(degree);
+        for(int i = 0; i < degree; i += 4) {
+            int packed = 0;
+            for(int k = 0; k < 4 && i + k < degree; k++) {
+                packed |= this.edgeStates[i + k] << (2 * k);
+            }
+            out.put((byte) packed);
+        }
+        for(int i = 0; i < degree; i++) {
+            out.putInt(this.unacked[i]).putInt(this.unreturned[i]);
+        }
+        putMessages(out, deferred);
+        // Messages waiting for credit have not been sent, so they are part of the state and not of a channel
+        out.putInt(this.held == null ? 0 : this.held.values().stream().mapToInt(h -> h.messages.size()).sum());
+        if(this.held != null) {
+            for(Map.Entry<Integer, Held> e : this.held.entrySet()) {
+                for(Message m : e.getValue().messages) {
+                    WireCodec.encode(e.getKey(), m, out);
+                }
+            }
+        }
+        return out.array();
+    }
+
+    // Puts this node back into a recorded state before it is started. The messages that were in flight then are
+    // handled before anything else that comes in.
+    void restore(ByteBuffer record) {
+        this.state = NODE_STATES[record.get()];
+        this.halted = record.get() != 0;
+        this.fragmentLevel = record.getInt();
+        this.fragmentName = getWeight(record);
+        int count = record.getInt();
+        this.findCount = count < 0 ? null : count;
+        this.inBranch = record.getInt();
+        this.bestEdge = record.getInt();
+        this.testEdge = record.getInt();
+        this.testCursor = record.getInt();
+        this.testHigh = record.getInt();
+        this.acceptedEdge = record.getInt();
+        this.testsOut = record.getInt();
+        if(this.testsOut > 0 && this.testing == null) {
+            throw new RuntimeException("Node " + this.id + " was checkpointed with a test window, it has none now");
+        }
+        for(int i = 0; i < this.testsOut; i++) {
+            this.testing.set(record.getInt());
+        }
+        this.bestWeight = getWeight(record);
+        int degree = record.getInt();
+        if(degree != this.neighbours.length) {
+            throw new RuntimeException("Node " + this.id + " has " + this.neighbours.length + " edges, " + degree +
+                    " in its checkpoint");
+        }
+        for(int i = 0; i < degree; i += 4) {
+            int packed = record.get();
+            for(int k = 0; k < 4 && i + k < degree; k++) {
+                this.edgeStates[i + k] = (byte) ((packed >> (2 * k)) & 3);
+            }
+        }
+        for(int i = 0; i < degree; i++) {
+            this.unacked[i] = record.getInt();
+            this.unreturned[i] = record.getInt();
+        }
+        for(Message m : getMessages(record)) {
+            if(m.type == MessageType.REPORT) {
+                this.reportQueue.add(new ReportMessage(m.from, m.weight));
+            } else if(m.type == MessageType.TEST && m.level <= this.fragmentLevel) {
+                this.readyTests.add(new TestMessage(m.from, m.level, m.weight));
+            } else if(m.type == MessageType.TEST) {
+                this.testQueue.computeIfAbsent(m.level, l -> new ArrayDeque<>())
+                        .add(new TestMessage(m.from, m.level, m.weight));
+            } else if(m.level < this.fragmentLevel) {
+                this.readyConnects.add(new ConnectMessage(m.from, m.level, identifyEdge(m.from)));
+            } else {
+                this.connectQueue.put(identifyEdge(m.from), new ConnectMessage(m.from, m.level, identifyEdge(m.from)));
+            }
+        }
+        for(int i = record.getInt(); i > 0; i--) {
+            int to = WireCodec.receiver(record);
+            Message m = WireCodec.decode(record);
+            hold(to, m, this.held == null ? null : this.held.get(to));
+        }
+        this.replay = getMessages(record);
+    }
+
+    // A restored node handles the messages that were in flight first; if it had halted, the collector hears so again
+    private void replay() {
+        List<Message> messages = this.replay;
+        this.replay = null;
+        boolean wasHalted = this.halted; // a replayed HALT reports through halt() itself
+        if(this.held != null) {
+            for(Integer neighbour : new ArrayList<>(this.held.keySet())) {
+                int j = this.edgeIndex.get(neighbour);
+                if(j != NONE) {
+                    release(neighbour, j); // the credits may have been raised since
+                }
+            }
+        }
+        messages.forEach(this::handle);
+        if(wasHalted && this.collector != null) {
+            this.collector.halted(this.id, branches());
+        }
+    }
+
+    private static int messagesSize(Collection<Message> messages) {
+        int size = 4;
+        for(Message m : messages) {
+            size += WireCodec.size(m);
+        }
+        return size;
+    }
+
+    private void putMessages(ByteBuffer out, List<Message> messages) {
+        out.putInt(messages.size());
+        for(Message m : messages) {
+            WireCodec.encode(this.id, m, out);
+        }
+    }
+
+    private static List<Message> getMessages(ByteBuffer in) {
+        int count = in.getInt();
+        List<Message> messages = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            messages.add(WireCodec.decode(in));
+        }
+        return messages;
+    }
+
+    // A tag for null, infinite or a real weight, then always the three ints
+    private static void putWeight(ByteBuffer out, Weight w) {
+        out.put((byte) (w == null ? 0 : w == Weight.INFINITE ? 1 : 2));
+        WireCodec.putWeight(w == null ? Weight.INFINITE : w, out);
+    }
+
+    private static Weight getWeight(ByteBuffer in) {
+        int tag = in.get();
+        Weight w = WireCodec.getWeight(in);
+        return tag == 0 ? null : tag == 1 ? Weight.INFINITE : w;
+    }
+
+    void maintainedBy(MstMaintainer maintainer) {
+        this.maintainer = maintainer;
+    }
+
+    // The weight of the edge to a neighbour, null if there is none
+    Weight weightTo(int neighbour) {
+        int j = this.edgeIndex.get(neighbour);
+        return j == NONE ? null : weightOf(j);
+    }
+
+    boolean isBranch(int neighbour) {
+        int j = this.edgeIndex.get(neighbour);
+        return j != NONE && stateOf(j) == EdgeState.IN_MST;
+    }
+
+    // Adds every edge of this node that leads to a higher id, so that each edge of the graph is added once
+    void addEdgesTo(EdgeList edges) {
+        for(int i = 0; i < this.neighbours.length; i++) {
+            if(this.neighbours[i] > this.id) {
+                edges.add(this.id, this.neighbours[i], this.weights[i]);
+            }
+        }
+    }
+
+    boolean isHalted() {
+        return halted;
+    }
+
+    int degree() {
+        return this.neighbours.length;
+    }
+
+    Integer getId() {
+        return id;
+    }
+
+    int getFragmentLevel() {
+        return fragmentLevel;
     }
 
     void printStatus() {
         String queueStatus = "";
         queueStatus += this.reportQueue.isEmpty() ? "R0" : "R1";
-        queueStatus += this.testQueue.isEmpty() ? "T0" : "T1";
-        queueStatus += this.connectQueue.isEmpty() ? "C0" : "C1";
+        queueStatus += this.testQueue.isEmpty() && this.readyTests.isEmpty() ? "T0" : "T1";
+        queueStatus += this.connectQueue.isEmpty() && this.readyConnects.isEmpty() ? "C0" : "C1";
         System.out.println("[Node: " + this.id + ", Level: " + this.fragmentLevel + ", Core: " +
                 this.fragmentName + ", Queue: " + queueStatus + "]");
     }
 
-    private void checkReportQueue() {
-        if(this.state == NodeState.FOUND) {
-            if(!this.reportQueue.isEmpty()) {
-                System.out.println(this.id + ": Popping a message from the report queue");
-                ReportMessage m = reportQueue.get(0);
-                reportQueue.remove(0);
-                this.receiveReport(m.from, m.weight);
+    // GHS puts a message it cannot handle yet back on the queue and looks at it again after every state change.
+    // The queues are re-examined after every handled message until none of the deferred messages can be processed.
+    private void checkQueues() {
+        if(this.checkingQueues) {
+            return; // an outer call is already looping over the queues
+        }
+        this.checkingQueues = true;
+        try {
+            boolean progress = true;
+            while(progress) {
+                progress = checkReportQueue() | checkTestQueue() | checkConnectQueue();
             }
+        } finally {
+            this.checkingQueues = false;
         }
     }
 
-    private void checkTestQueue() {
-        if(!testQueue.isEmpty()) {
-            TestMessage tm = testQueue.get(0);
-            if(tm.level <= this.fragmentLevel) {
-                System.out.println(this.id + ": Popping a message from the test queue");
-                testQueue.remove(tm);
-                this.receiveTest(tm.from, tm.level, tm.weight);
-                checkTestQueue();
-            }
+    private boolean checkReportQueue() {
+        boolean progress = false;
+        while(this.state != NodeState.FIND && !this.reportQueue.isEmpty()) {
+            ReportMessage m = reportQueue.poll();
+            Trace.event(TraceEvent.POP, this.id, m.from, MessageType.REPORT.ordinal());
+            Metrics.GLOBAL.deferred(MessageType.REPORT, m.deferredAt);
+            this.handleReport(m.from, m.weight);
+            progress = true;
+        }
+        return progress;
+    }
+
+    private boolean checkTestQueue() {
+        TestMessage tm = readyTests.poll();
+        if(tm == null) {
+            return false;
+        }
+        Trace.event(TraceEvent.POP, this.id, tm.from, MessageType.TEST.ordinal());
+        Metrics.GLOBAL.deferred(MessageType.TEST, tm.deferredAt);
+        this.handleTest(tm.from, tm.level, tm.weight);
+        return true;
+    }
+
+    // Moves the buckets of deferred Tests up to the fragment level to the ready queue, lowest level first
+    private void releaseTests() {
+        Map<Integer, ArrayDeque<TestMessage>> released = this.testQueue.headMap(this.fragmentLevel, true);
+        for(ArrayDeque<TestMessage> bucket : released.values()) {
+            this.readyTests.addAll(bucket);
+        }
+        released.clear();
+    }
+
+    private boolean checkConnectQueue() {
+        ConnectMessage m = readyConnects.poll();
+        if(m == null) {
+            return false;
         }
+        Trace.event(TraceEvent.POP, this.id, m.from, MessageType.CONNECT.ordinal());
+        Metrics.GLOBAL.deferred(MessageType.CONNECT, m.deferredAt);
+        this.handleConnect(m.from, m.value);
+        return true;
     }
 
-    private void checkConnectQueue() {
-        List<ConnectMessage> toProcess = new ArrayList<>();
-        for(ConnectMessage m : connectQueue) {
-            if(this.edgeStates.get(m.edge) != EdgeState.UNKNOWN) {
-                toProcess.add(m);
+    // Moves the deferred Connects that are now below the fragment level to the ready queue
+    private void releaseConnects() {
+        if(this.connectQueue.isEmpty()) {
+            return;
+        }
+        Iterator<ConnectMessage> it = this.connectQueue.values().iterator();
+        while(it.hasNext()) {
+            ConnectMessage m = it.next();
+            if(m.value < this.fragmentLevel) {
+                it.remove();
+                this.readyConnects.add(m);
             }
         }
-        for(ConnectMessage m : toProcess) {
-            System.out.println(this.id + ": Popping a message from the request queue");
-            connectQueue.remove(m);
-            this.receiveConnect(m.from, m.value);
+    }
+
+    // The messages of one edge that wait for credit, and since when the edge has had none
+    private static final class Held {
+        final ArrayDeque<Message> messages = new ArrayDeque<>();
+        final long since;
+
+        Held(long since) {
+            this.since = since;
         }
     }
 
+    // A snapshot this node has recorded its state for, waiting for the markers of its neighbours
+    private static final class Recording {
+        final byte[] state;
+        final Set<Integer> waiting; // the neighbours whose marker has not come in yet
+        final List<Message> inFlight = new ArrayList<>(); // what came in from those neighbours meanwhile
+
+        Recording(byte[] state, Collection<Integer> neighbours) {
+            this.state = state;
+            this.waiting = new HashSet<>(neighbours);
+        }
+    }
 }
@@ -0,0 +1,107 @@
+import java.rmi.AlreadyBoundException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+// Runs many nodes behind one exported endpoint. Messages between nodes of the same host are put straight into
+// the mailbox of the receiving node without serialization, all other messages go out over RMI to the other hosts.
+public class NodeHost implements IHost, Transport {
+    public static final String BINDING_PREFIX = "host-";
+
+    private final String name;
+    private final LocalTransport local;
+    private final Transport remote;
+    private final Map<Integer, Node> nodes = new ConcurrentHashMap<>();
+
+    public NodeHost(String name, LocalTransport local, Transport remote) {
+        this.name = name;
+        this.local = local;
+        this.remote = remote;
+    }
+
+    // Reads ghs.host.name and builds the remote side like RmiTransport.fromSystemProperties, resolving through hosts
+    public static NodeHost fromSystemProperties() {
+        RmiTransport remote = new RmiTransport(Dispatcher.fromSystemProperties(),
+                new HostStubTable(StubTable.registryHostsFromSystemProperties()),
+                Integer.getInteger("ghs.batch.size", 1), Long.getLong("ghs.batch.window", 5L));
+        return new NodeHost(System.getProperty("ghs.host.name", "0"), new LocalTransport(), remote);
+    }
+
+    public void register(Node node) {
+        nodes.put(node.getId(), node);
+        local.register(node);
+    }
+
+    // Exports this host once and binds it, however many nodes it runs
+    public void bind(Registry registry) throws RemoteException, AlreadyBoundException {
+        IHost stub = (IHost) UnicastRemoteObject.exportObject(this, 0);
+        registry.bind(BINDING_PREFIX + name, stub);
+    }
+
+    public void unbind(Registry registry) throws RemoteException, NotBoundException {
+        registry.unbind(BINDING_PREFIX + name);
+        UnicastRemoteObject.unexportObject(this, true);
+    }
+
+    @Override
+    public void open(Integer nodeId, Collection<Integer> neighbourIds) {
+        List<Integer> remoteNeighbours = new ArrayList<>();
+        for(Integer n : neighbourIds) {
+            if(!nodes.containsKey(n)) {
+                remoteNeighbours.add(n);
+            }
+        }
+        if(!remoteNeighbours.isEmpty()) {
+            remote.open(nodeId, remoteNeighbours);
+        }
+    }
+
+    @Override
+    public void close() {
+        remote.close();
+    }
+
+    @Override
+    public Executor scheduler() {
+        return local.scheduler();
+    }
+
+    @Override
+    public void send(Integer from, Integer to, Message message) {
+        if(nodes.containsKey(to)) {
+            local.send(from, to, message);
+        } else {
+            remote.send(from, to, message);
+        }
+    }
+
+    @Override
+    public int[] hostedIds() {
+        return nodes.keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Override
+    public void deliver(Integer to, Message message) throws RemoteException {
+        message.deliverTo(node(to));
+    }
+
+    @Override
+    public void deliverBatch(Integer to, List<Message> messages) {
+        node(to).receiveBatch(messages);
+    }
+
+    private Node node(Integer id) {
+        Node node = nodes.get(id);
+        if(node == null) {
+            throw new RuntimeException("Host " + name + " does not run node " + id);
+        }
+        return node;
+    }
+}
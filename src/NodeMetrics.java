@@ -0,0 +1,75 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Message counters of one node. Only the node's own handlers update them, so plain arrays suffice; readers on other
+// threads may see slightly old values. Sessions run on mailboxes of their own, so each counts into its own
+// NodeMetrics and the node reports the sum of them all.
+public class NodeMetrics {
+    private static final MessageType[] TYPES = MessageType.values();
+
+    final int id;
+    final int session;
+    private final long[] sent = new long[TYPES.length];
+    private final long[] received = new long[TYPES.length];
+    private final List<NodeMetrics> sessions = new CopyOnWriteArrayList<>();
+
+    NodeMetrics(int id) {
+        this(id, 0);
+    }
+
+    private NodeMetrics(int id, int session) {
+        this.id = id;
+        this.session = session;
+    }
+
+    // The counters of a session of this node, included in the sums of this one
+    NodeMetrics session(int session) {
+        NodeMetrics metrics = new NodeMetrics(id, session);
+        sessions.add(metrics);
+        return metrics;
+    }
+
+    void countSent(MessageType type) {
+        sent[type.ordinal()]++;
+    }
+
+    void countReceived(MessageType type) {
+        received[type.ordinal()]++;
+    }
+
+    long sent(MessageType type) {
+        long count = sent[type.ordinal()];
+        for(NodeMetrics s : sessions) {
+            count += s.sent(type);
+        }
+        return count;
+    }
+
+    long received(MessageType type) {
+        long count = received[type.ordinal()];
+        for(NodeMetrics s : sessions) {
+            count += s.received(type);
+        }
+        return count;
+    }
+
+    long total() {
+        long total = 0;
+        for(MessageType type : TYPES) {
+            total += sent(type) + received(type);
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("node " + id + (session == 0 ? "" : " session " + session) + ": " +
+                total() + " messages");
+        for(MessageType type : TYPES) {
+            if(sent(type) + received(type) > 0) {
+                sb.append(", ").append(type).append(' ').append(sent(type)).append('/').append(received(type));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,42 @@
+// Switchable changes to GHS that keep its result but take fewer rounds. They are off by default, so that runs can be
+// compared against the textbook algorithm.
+//
+// ghs.opt is none or:
+//   window<n>  test up to n of the lightest unknown edges at once instead of one after the other
+public final class Optimizations {
+    public static final Optimizations NONE = new Optimizations(1);
+    private static volatile Optimizations active = parse(System.getProperty("ghs.opt", "none"));
+
+    final int testWindow;
+
+    public Optimizations(int testWindow) {
+        if(testWindow < 1) {
+            throw new IllegalArgumentException("A test window must hold at least one edge");
+        }
+        this.testWindow = testWindow;
+    }
+
+    public static Optimizations parse(String spec) {
+        String s = spec.trim().toLowerCase();
+        if(s.equals("none")) {
+            return NONE;
+        } else if(s.matches("window[0-9]+")) {
+            return new Optimizations(Integer.parseInt(s.substring("window".length())));
+        }
+        throw new IllegalArgumentException("Unknown optimization " + spec + ", expected none or window<n>");
+    }
+
+    // The optimizations of the nodes created from now on
+    public static Optimizations active() {
+        return active;
+    }
+
+    public static void activate(Optimizations optimizations) {
+        active = optimizations;
+    }
+
+    @Override
+    public String toString() {
+        return testWindow > 1 ? "window" + testWindow : "none";
+    }
+}
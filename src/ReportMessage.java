@@ -1,9 +1,11 @@
 public class ReportMessage {
     final Integer from;
     final Weight weight;
+    final long deferredAt; // Metrics clock when the message was queued
 
     public ReportMessage(Integer f, Weight w) {
         this.from = f;
         this.weight = w;
+        this.deferredAt = Metrics.GLOBAL.now();
     }
 }
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Checks that a simulated run resumes correctly from every snapshot taken while the HALT wave spreads, when part of
+// the nodes have halted and HALTs are in flight. A first run finds out when the wave starts and how long it takes,
+// a second one snapshots it a few times over, then every complete snapshot is restored into fresh nodes and run to
+// the end. Each resumed run must report every node exactly once and build the same tree as Boruvka.
+//
+// Settings: ghs.check.nodes (default 3000), ghs.check.degree (4), ghs.check.snapshots (8) per HALT wave and
+// ghs.seed (4), on a random graph. Throws if any snapshot fails.
+public class RestoreCheck {
+    public static void main(String[] args) throws IOException {
+        int size = Integer.getInteger("ghs.check.nodes", 3000);
+        int degree = Integer.getInteger("ghs.check.degree", 4);
+        int perWave = Integer.getInteger("ghs.check.snapshots", 8);
+        long seed = Long.getLong("ghs.seed", 4L);
+        GraphGenerator generator = new GraphGenerator(GraphGenerator.Topology.RANDOM, size, degree, seed);
+        EdgeList graph = new EdgeList();
+        generator.scan(graph::add);
+        SpanningTree reference = Boruvka.mst(graph);
+
+        // When the first and the last node halt without snapshots
+        Simulator plain = new Simulator(seed, LinkDelay.uniform(Dispatcher.NETWORK_DELAY));
+        List<Node> nodes = nodes(generator, plain);
+        long[] wave = {-1, -1};
+        MstCollector timer = new MstCollector(nodes.size()) {
+            @Override
+            void halted(int nodeId, List<Edge> branches) {
+                if(wave[0] < 0) {
+                    wave[0] = plain.now();
+                }
+                wave[1] = plain.now();
+                super.halted(nodeId, branches);
+            }
+        };
+        nodes.forEach(n -> n.reportTo(timer));
+        nodes.forEach(plain::add);
+        plain.run();
+        if(!timer.result().isDone()) {
+            throw new RuntimeException("The run without snapshots did not halt");
+        }
+
+        // The same run, snapshotted from just before the first HALT on. The runs only part once markers are sent.
+        Path file = Files.createTempFile("restore-check", ".log");
+        try {
+            long interval = Math.max(1, (wave[1] - wave[0]) / perWave);
+            Simulator snapshotted = new Simulator(seed, LinkDelay.uniform(Dispatcher.NETWORK_DELAY));
+            nodes = nodes(generator, snapshotted);
+            Checkpointer checkpoints = new Checkpointer(new CheckpointLog(file), nodes, interval);
+            nodes.forEach(n -> n.reportTo(new MstCollector(0)));
+            nodes.forEach(snapshotted::add);
+            snapshotted.every(interval, () -> snapshotted.now() + interval < wave[0] || checkpoints.initiate());
+            snapshotted.run();
+            checkpoints.close();
+            System.out.println("HALT wave from " + wave[0] + " to " + wave[1] + " ms, snapshots every " + interval +
+                    " ms, " + checkpoints.getComplete() + " taken");
+
+            int failed = 0;
+            int duringWave = 0;
+            for(int snapshot = 1; snapshot <= checkpoints.getComplete(); snapshot++) {
+                String problem = resume(generator, file, snapshot, seed, reference);
+                if(problem == null) {
+                    continue;
+                } else if(problem.isEmpty()) {
+                    duringWave++;
+                } else {
+                    failed++;
+                    System.out.println("Snapshot " + snapshot + ": " + problem);
+                }
+            }
+            System.out.println(duringWave + " snapshots in the HALT wave resumed correctly, " + failed + " failed");
+            if(failed > 0) {
+                throw new RuntimeException(failed + " snapshots did not resume correctly");
+            } else if(duringWave == 0) {
+                throw new RuntimeException("No snapshot was taken while the HALT wave spread");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Resumes a run from the snapshot. Returns null if it was not taken in the HALT wave, empty if it resumed
+    // correctly, else what went wrong.
+    private static String resume(GraphGenerator generator, Path file, int snapshot, long seed,
+                                 SpanningTree reference) throws IOException {
+        Simulator simulator = new Simulator(seed + snapshot, LinkDelay.uniform(Dispatcher.NETWORK_DELAY));
+        List<Node> nodes = nodes(generator, simulator);
+        Checkpointer checkpoints = new Checkpointer(new CheckpointLog(file), nodes, 1000);
+        try {
+            checkpoints.restore(snapshot);
+        } finally {
+            checkpoints.close();
+        }
+        int halted = 0;
+        for(Node n : nodes) {
+            halted += n.isHalted() ? 1 : 0;
+        }
+        if(halted == 0 || halted == nodes.size()) {
+            return null;
+        }
+        Set<Integer> reported = new HashSet<>();
+        List<Integer> twice = new ArrayList<>();
+        MstCollector collector = new MstCollector(nodes.size()) {
+            @Override
+            void halted(int nodeId, List<Edge> branches) {
+                if(!reported.add(nodeId)) {
+                    twice.add(nodeId);
+                }
+                super.halted(nodeId, branches);
+            }
+        };
+        nodes.forEach(n -> n.reportTo(collector));
+        nodes.forEach(simulator::add);
+        simulator.run();
+        if(!twice.isEmpty()) {
+            return twice.size() + " nodes reported twice, " + twice;
+        } else if(!collector.result().isDone()) {
+            return (nodes.size() - reported.size()) + " nodes never halted";
+        }
+        List<String> problems = MstVerifier.verify(collector.result().join(), reference, id -> true);
+        return problems.isEmpty() ? "" : String.join("; ", problems);
+    }
+
+    private static List<Node> nodes(GraphGenerator generator, Simulator simulator) throws IOException {
+        List<Node> nodes = new ArrayList<>();
+        generator.nodes(id -> true, (id, neighbourIds, weights) ->
+                nodes.add(new Node(id, neighbourIds, weights, simulator)));
+        return nodes;
+    }
+}
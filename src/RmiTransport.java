@@ -0,0 +1,161 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class RmiTransport implements Transport {
+    private static final long CLOSE_TIMEOUT = 10000; // ms close waits for the last messages to go out
+    private static final long RESOLVE_TIMEOUT = 60000; // ms a message waits for its receiver to be bound
+    private static final long MAX_BACKOFF = 2000; // ms between lookups of a receiver that is not bound yet
+
+    private final Dispatcher dispatcher; // shared outbound dispatch, keeps messages in order per link
+    private final StubTable stubs; // cached remote stubs of the neighbours of all local nodes
+    private final int batchSize; // messages per receiveBatch call, 1 sends every message on its own
+    private final long batchWindow; // ms a message may wait for others on the same link
+    private final Map<Long, Batch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    public RmiTransport(Dispatcher dispatcher, List<String> registryHosts) {
+        this(dispatcher, registryHosts, 1, 0);
+    }
+
+    public RmiTransport(Dispatcher dispatcher, List<String> registryHosts, int batchSize, long batchWindow) {
+        this(dispatcher, new StubTable(registryHosts), batchSize, batchWindow);
+    }
+
+    public RmiTransport(Dispatcher dispatcher, StubTable stubs, int batchSize, long batchWindow) {
+        this.dispatcher = dispatcher;
+        this.stubs = stubs;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchWindow = batchWindow;
+        this.flusher = this.batchSize > 1 ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "batch-flusher");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    // Reads ghs.batch.size and ghs.batch.window (ms) on top of the dispatcher and registry settings
+    public static RmiTransport fromSystemProperties() {
+        return new RmiTransport(Dispatcher.fromSystemProperties(), StubTable.registryHostsFromSystemProperties(),
+                Integer.getInteger("ghs.batch.size", 1), Long.getLong("ghs.batch.window", 5L));
+    }
+
+    @Override
+    public void open(Integer nodeId, Collection<Integer> neighbourIds) {
+        stubs.resolveAll(neighbourIds);
+    }
+
+    @Override
+    public void send(Integer from, Integer to, Message message) {
+        if(batchSize == 1) {
+            dispatcher.dispatchRetrying(from, to, new Sending(to, message::deliverTo));
+            return;
+        }
+        long key = ((long) from << 32) | (to & 0xffffffffL);
+        batches.computeIfAbsent(key, k -> new Batch(from, to)).add(message);
+    }
+
+    @Override
+    public void close() {
+        for(Batch batch : batches.values()) {
+            batch.flushWindow();
+        }
+        if(flusher != null) {
+            flusher.shutdownNow();
+        }
+        dispatcher.awaitIdle(CLOSE_TIMEOUT);
+        dispatcher.shutdown();
+    }
+
+    // A message or batch on its way to one receiver. While no registry knows the receiver the link backs off and
+    // is tried again, without holding a dispatch thread. A GHS run that loses a message never finishes, so giving up
+    // is loud.
+    private class Sending implements Dispatcher.Attempt {
+        private final Integer to;
+        private final Delivery delivery;
+        private long deadline = 0; // ms, set by the first lookup miss
+        private long backoff = 50;
+        private boolean resent = false; // already sent again after a stale stub
+
+        Sending(Integer to, Delivery delivery) {
+            this.to = to;
+            this.delivery = delivery;
+        }
+
+        @Override
+        public long run() {
+            INode receiver = stubs.get(to);
+            if(receiver == null) {
+                return backOff();
+            }
+            try {
+                delivery.deliverTo(receiver);
+            } catch (RemoteException e) {
+                // Drop the cached stub so the next message looks the neighbour up again
+                stubs.invalidate(to, receiver);
+                if(!StubTable.isStale(e)) {
+                    e.printStackTrace(); // the call may have reached the neighbour, sending again could duplicate it
+                } else if(resent) {
+                    e.printStackTrace();
+                } else {
+                    resent = true;
+                    return run();
+                }
+            }
+            return 0;
+        }
+
+        private long backOff() {
+            long now = System.currentTimeMillis();
+            if(deadline == 0) {
+                deadline = now + RESOLVE_TIMEOUT;
+            } else if(now >= deadline) {
+                throw new RuntimeException("No registry knows node " + to + " after " + RESOLVE_TIMEOUT +
+                        " ms, a message to it is lost");
+            }
+            long wait = Math.max(1, Math.min(backoff, deadline - now));
+            backoff = Math.min(2 * backoff, MAX_BACKOFF);
+            return wait;
+        }
+    }
+
+    // Collects the messages of one link until the batch is full or its window has passed
+    private class Batch {
+        private final Integer from;
+        private final Integer to;
+        private List<Message> messages = new ArrayList<>();
+
+        Batch(Integer from, Integer to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        synchronized void add(Message message) {
+            messages.add(message);
+            if(messages.size() >= batchSize) {
+                flush();
+            } else if(messages.size() == 1) {
+                flusher.schedule(this::flushWindow, batchWindow, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void flushWindow() {
+            if(!messages.isEmpty()) {
+                flush();
+            }
+        }
+
+        // Hands the batch to the dispatcher while holding the lock, so batches of a link stay in order
+        private void flush() {
+            List<Message> batch = messages;
+            messages = new ArrayList<>();
+            dispatcher.dispatchRetrying(from, to, new Sending(to, receiver -> receiver.receiveBatch(batch)));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+
+// Discrete-event transport: runs all node handlers on the calling thread in virtual time. The same seed gives the
+// same execution, because events are ordered on (time, sequence number) and all randomness comes from one Random.
+public class Simulator implements Transport {
+    private static final int WAKEUP_WINDOW = 1000; // nodes start spontaneously somewhere in the first second
+
+    private final Random random;
+    private final LinkDelay linkDelay;
+    private final Map<Integer, Node> nodes = new HashMap<>();
+    private final Map<Long, Long> lastArrival = new HashMap<>(); // keeps every link FIFO
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now = 0;
+    private long sequence = 0;
+    private long delivered = 0;
+
+    public Simulator(long seed, LinkDelay linkDelay) {
+        this.random = new Random(seed);
+        this.linkDelay = linkDelay;
+        Metrics.GLOBAL.useClock(() -> this.now * 1000); // virtual ms, so latencies are simulated link delays
+    }
+
+    public void add(Node node) {
+        nodes.put(node.getId(), node);
+        schedule(random.nextInt(WAKEUP_WINDOW), node::spontaneousStart);
+    }
+
+    // Mailboxes are drained on the simulation thread as soon as an event posts to them
+    @Override
+    public Executor scheduler() {
+        return Runnable::run;
+    }
+
+    @Override
+    public void send(Integer from, Integer to, Message message) {
+        Node receiver = nodes.get(to);
+        if(receiver == null) {
+            throw new RuntimeException("Node " + to + " is not part of the simulation");
+        }
+        long link = ((long) from << 32) | (to & 0xffffffffL);
+        long arrival = Math.max(now + linkDelay.delay(from, to, random), lastArrival.getOrDefault(link, 0L));
+        lastArrival.put(link, arrival);
+        schedule(arrival, () -> {
+            delivered++;
+            try {
+                message.deliverTo(receiver);
+            } catch (RemoteException e) {
+                // a local node never throws this
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // Runs action every period ms of virtual time for as long as it returns true
+    public void every(long period, BooleanSupplier action) {
+        schedule(now + period, () -> {
+            if(action.getAsBoolean()) {
+                every(period, action);
+            }
+        });
+    }
+
+    // Runs events until none are left, returns the number of messages delivered
+    public long run() {
+        Event e;
+        while((e = events.poll()) != null) {
+            now = e.time;
+            e.action.run();
+        }
+        return delivered;
+    }
+
+    public long now() {
+        return now;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    private void schedule(long time, Runnable action) {
+        events.add(new Event(time, sequence++, action));
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event e) {
+            if(time != e.time) {
+                return Long.compare(time, e.time);
+            }
+            return Long.compare(sequence, e.sequence);
+        }
+    }
+}
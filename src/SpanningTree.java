@@ -0,0 +1,31 @@
+import java.util.Collections;
+import java.util.List;
+
+// The branches found by a run, sorted on weight, and their total weight
+public class SpanningTree {
+    private final List<Edge> edges;
+    private final long totalWeight;
+
+    public SpanningTree(List<Edge> edges) {
+        Collections.sort(edges);
+        this.edges = Collections.unmodifiableList(edges);
+        long total = 0;
+        for(Edge e : edges) {
+            total += e.weight.value();
+        }
+        this.totalWeight = total;
+    }
+
+    public List<Edge> getEdges() {
+        return edges;
+    }
+
+    public long getTotalWeight() {
+        return totalWeight;
+    }
+
+    @Override
+    public String toString() {
+        return edges.size() + " edges, total weight " + totalWeight + ": " + edges;
+    }
+}
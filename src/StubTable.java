@@ -0,0 +1,69 @@
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class StubTable {
+    private final List<Registry> registries = new ArrayList<>();
+    private final Map<Integer, INode> stubs = new ConcurrentHashMap<>();
+
+    public StubTable(List<String> registryHosts) {
+        for(String host : registryHosts) {
+            int colon = host.lastIndexOf(':');
+            String name = colon < 0 ? host : host.substring(0, colon);
+            int port = colon < 0 ? Registry.REGISTRY_PORT : Integer.parseInt(host.substring(colon + 1));
+            try {
+                this.registries.add(LocateRegistry.getRegistry(name, port));
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Reads ghs.registry.hosts, a comma separated list of host:port pairs that are searched in order
+    public static List<String> registryHostsFromSystemProperties() {
+        return Arrays.asList(System.getProperty("ghs.registry.hosts", "localhost:1099").split(","));
+    }
+
+    public void resolveAll(Collection<Integer> nodeIds) {
+        nodeIds.forEach(this::get);
+    }
+
+    // Returns the cached stub of a node, looking it up in the registries on a miss. Returns null if no registry knows it.
+    public INode get(Integer nodeId) {
+        INode stub = stubs.get(nodeId);
+        if(stub != null) {
+            return stub;
+        }
+        for(Registry registry : registries) {
+            try {
+                stub = lookup(registry, nodeId);
+                stubs.put(nodeId, stub);
+                return stub;
+            } catch (NotBoundException | RemoteException ignored) {}
+        }
+        return null;
+    }
+
+    protected INode lookup(Registry registry, Integer nodeId) throws RemoteException, NotBoundException {
+        return (INode) registry.lookup("p" + nodeId);
+    }
+
+    public void invalidate(Integer nodeId, INode stale) {
+        stubs.remove(nodeId, stale);
+    }
+
+    // True if the call certainly did not reach the remote object, so it is safe to re-resolve and send again
+    public static boolean isStale(RemoteException e) {
+        return e instanceof NoSuchObjectException || e instanceof ConnectException || e instanceof ConnectIOException;
+    }
+}
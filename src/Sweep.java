@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Runs GHS over every combination of graph size, average degree and transport and records how it scales.
+//
+// Settings are comma separated lists: ghs.sweep.nodes (default 1000,10000,100000), ghs.sweep.degree (4,8),
+// ghs.sweep.transport (sim,local) and ghs.sweep.opt (none), a list of Optimizations to compare against each other, plus
+// ghs.sweep.topology (random), ghs.seed and ghs.sweep.timeout (s per run).
+// Results go to <ghs.sweep.out>.csv and .json (default sweep). rmi and host need a registry and other JVMs, so they
+// are not swept here.
+public class Sweep {
+    private static final MessageType[] TYPES = MessageType.values();
+
+    public static void main(String[] args) throws IOException {
+        List<Integer> sizes = ints(System.getProperty("ghs.sweep.nodes", "1000,10000,100000"));
+        List<Integer> degrees = ints(System.getProperty("ghs.sweep.degree", "4,8"));
+        List<String> transports = Arrays.asList(System.getProperty("ghs.sweep.transport", "sim,local").split(","));
+        List<String> optimizations = Arrays.asList(System.getProperty("ghs.sweep.opt", "none").split(","));
+        GraphGenerator.Topology topology = GraphGenerator.Topology.valueOf(
+                System.getProperty("ghs.sweep.topology", "random").toUpperCase().replace('-', '_'));
+        long seed = Long.getLong("ghs.seed", 0L);
+        long timeout = Long.getLong("ghs.sweep.timeout", 600L);
+        String out = System.getProperty("ghs.sweep.out", "sweep");
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for(String transport : transports) {
+            for(int nodes : sizes) {
+                for(int degree : degrees) {
+                    for(String opt : optimizations) {
+                        GraphGenerator generator = new GraphGenerator(topology, nodes, degree, seed);
+                        Optimizations.activate(Optimizations.parse(opt));
+                        Map<String, Object> result = new LinkedHashMap<>();
+                        result.put("topology", topology.name().toLowerCase());
+                        result.put("degree", degree);
+                        result.put("opt", Optimizations.active().toString());
+                        result.putAll(run(generator, transport.trim(), seed, timeout));
+                        results.add(result);
+                        System.out.println(result);
+                    }
+                }
+            }
+        }
+        writeCsv(results, out + ".csv");
+        writeJson(results, out + ".json");
+    }
+
+    private static Map<String, Object> run(GraphGenerator generator, String transport, long seed, long timeout)
+            throws IOException {
+        Metrics.GLOBAL.reset();
+        System.gc();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heap.add(pool);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Node> nodes = new ArrayList<>();
+        boolean halted;
+        long virtualMillis = -1;
+        if("sim".equals(transport)) {
+            Simulator simulator = new Simulator(seed, LinkDelay.uniform(Dispatcher.NETWORK_DELAY));
+            generator.nodes(id -> true, (id, neighbourIds, weights) ->
+                    nodes.add(new Node(id, neighbourIds, weights, simulator)));
+            MstCollector collector = collect(nodes);
+            nodes.forEach(simulator::add);
+            simulator.run();
+            virtualMillis = simulator.now();
+            halted = collector.result().isDone();
+        } else if("local".equals(transport)) {
+            LocalTransport local = new LocalTransport();
+            generator.nodes(id -> true, (id, neighbourIds, weights) ->
+                    nodes.add(new Node(id, neighbourIds, weights, local)));
+            nodes.forEach(local::register);
+            MstCollector collector = collect(nodes);
+            // Woken directly instead of through Node.run, which would start a thread per node
+            nodes.forEach(Node::spontaneousStart);
+            try {
+                collector.result().get(timeout, TimeUnit.SECONDS);
+                halted = true;
+            } catch (TimeoutException e) {
+                halted = false;
+            } catch (Exception e) {
+                e.printStackTrace();
+                halted = false;
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot sweep over transport " + transport);
+        }
+        long wallMillis = (System.nanoTime() - start) / 1000000;
+
+        long peakHeap = 0;
+        for(MemoryPoolMXBean pool : heap) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        long edges = 0;
+        int minLevel = Integer.MAX_VALUE;
+        int maxLevel = 0;
+        for(Node n : nodes) {
+            edges += n.degree();
+            minLevel = Math.min(minLevel, n.getFragmentLevel());
+            maxLevel = Math.max(maxLevel, n.getFragmentLevel());
+        }
+        edges /= 2;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("transport", transport);
+        result.put("nodes", nodes.size());
+        result.put("edges", edges);
+        result.put("halted", halted);
+        result.put("wall_ms", wallMillis);
+        result.put("virtual_ms", virtualMillis); // sim only, the time the last message was handled
+        result.put("messages", Metrics.GLOBAL.getMessagesSent());
+        result.put("other_messages", Metrics.GLOBAL.getOtherMessagesSent()); // not counted by bound_ratio
+        Map<String, Long> byType = Metrics.GLOBAL.getSentByType();
+        for(MessageType type : TYPES) {
+            result.put(type.name().toLowerCase(), byType.get(type.name()));
+        }
+        result.put("bound_ratio", Metrics.GLOBAL.boundRatio(edges, nodes.size()));
+        result.put("min_level", nodes.isEmpty() ? 0 : minLevel);
+        result.put("max_level", maxLevel);
+        result.put("peak_threads", threads.getPeakThreadCount());
+        result.put("peak_heap_mb", peakHeap >> 20);
+        return result;
+    }
+
+    private static MstCollector collect(List<Node> nodes) {
+        MstCollector collector = new MstCollector(nodes.size());
+        nodes.forEach(n -> n.reportTo(collector));
+        return collector;
+    }
+
+    private static List<Integer> ints(String list) {
+        List<Integer> values = new ArrayList<>();
+        for(String s : list.split(",")) {
+            values.add(Integer.parseInt(s.trim()));
+        }
+        return values;
+    }
+
+    private static void writeCsv(List<Map<String, Object>> results, String file) throws IOException {
+        if(results.isEmpty()) {
+            return;
+        }
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(Paths.get(file)))) {
+            w.println(String.join(",", results.get(0).keySet()));
+            for(Map<String, Object> r : results) {
+                List<String> values = new ArrayList<>();
+                r.values().forEach(v -> values.add(format(v)));
+                w.println(String.join(",", values));
+            }
+        }
+    }
+
+    private static void writeJson(List<Map<String, Object>> results, String file) throws IOException {
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(Paths.get(file)))) {
+            w.println("[");
+            for(int i = 0; i < results.size(); i++) {
+                List<String> fields = new ArrayList<>();
+                for(Map.Entry<String, Object> e : results.get(i).entrySet()) {
+                    Object v = e.getValue();
+                    String value = v instanceof String ? "\"" + v + "\"" : format(v);
+                    fields.add("\"" + e.getKey() + "\": " + value);
+                }
+                w.println("  {" + String.join(", ", fields) + "}" + (i < results.size() - 1 ? "," : ""));
+            }
+            w.println("]");
+        }
+    }
+
+    private static String format(Object value) {
+        return value instanceof Double ? String.format(Locale.ROOT, "%.4f", (Double) value) : String.valueOf(value);
+    }
+}
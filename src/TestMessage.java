@@ -2,10 +2,12 @@ public class TestMessage {
     final Integer from;
     final Integer level;
     final Weight weight;
+    final long deferredAt; // Metrics clock when the message was queued
 
     public TestMessage(Integer from, Integer level, Weight weight) {
         this.from = from;
         this.level = level;
         this.weight = weight;
+        this.deferredAt = Metrics.GLOBAL.now();
     }
 }
@@ -0,0 +1,216 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Low overhead event tracing. Every thread records into its own ring buffer without locks, a background thread
+// copies the rings to a binary file. A ring that is full drops events rather than blocking the node; the writer
+// records how many were lost. With the level at OFF an event costs one volatile read.
+//
+// The file starts with the magic "GHST" and a version int, followed by records of a long time (Metrics clock, us)
+// and four ints: the TraceEvent ordinal, the node id and the arguments a and b, all big endian. TraceReader turns it
+// into a timeline per node.
+public class Trace implements TraceMXBean {
+    public static final int MAGIC = 0x47485354; // "GHST"
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 24;
+    public static final String OBJECT_NAME = "ghs:type=Trace";
+    private static final int RING_EVENTS = // per thread, rounded up to a power of two
+            Integer.highestOneBit(Math.max(2, Integer.getInteger("ghs.trace.buffer", 1 << 16)) * 2 - 1);
+    private static final long FLUSH_INTERVAL = 20; // ms between two copies of the rings to the file
+
+    private static final Trace INSTANCE = new Trace();
+    private static volatile int level = TraceLevel.OFF.ordinal();
+    private static final ThreadLocal<Ring> RINGS = ThreadLocal.withInitial(INSTANCE::newRing);
+
+    private final List<Ring> rings = new CopyOnWriteArrayList<>();
+    private final AtomicLong written = new AtomicLong();
+    private Path file = Paths.get("ghs-trace.bin");
+    private DataOutputStream out; // guarded by this
+    private Thread writer;
+
+    private Trace() {}
+
+    // Reads ghs.trace (off, info, debug or all) and ghs.trace.file, and registers the level with JMX so it can be
+    // changed while running. ghs.trace.buffer sets the events each thread can hold before the writer catches up.
+    public static void fromSystemProperties() {
+        INSTANCE.file = Paths.get(System.getProperty("ghs.trace.file", "ghs-trace.bin"));
+        setLevel(TraceLevel.valueOf(System.getProperty("ghs.trace", "off").toUpperCase()));
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static boolean enabled(TraceLevel l) {
+        return l.ordinal() <= level;
+    }
+
+    public static void event(TraceEvent e, int node) {
+        event(e, node, 0, 0);
+    }
+
+    public static void event(TraceEvent e, int node, int a, int b) {
+        if(e.level.ordinal() > level) {
+            return;
+        }
+        RINGS.get().offer(Metrics.GLOBAL.now(), e.ordinal(), node, a, b);
+    }
+
+    // Opens the trace file the first time tracing is switched on
+    public static void setLevel(TraceLevel l) {
+        if(l != TraceLevel.OFF && !INSTANCE.open()) {
+            return;
+        }
+        level = l.ordinal();
+    }
+
+    // Switches tracing off and writes out everything that was recorded
+    public static void close() {
+        level = TraceLevel.OFF.ordinal();
+        INSTANCE.stop();
+    }
+
+    @Override
+    public String getLevel() {
+        return TraceLevel.values()[level].name();
+    }
+
+    @Override
+    public void setLevel(String l) {
+        setLevel(TraceLevel.valueOf(l.toUpperCase()));
+    }
+
+    @Override
+    public long getWritten() {
+        return written.get();
+    }
+
+    @Override
+    public long getDropped() {
+        long dropped = 0;
+        for(Ring r : rings) {
+            dropped += r.dropped;
+        }
+        return dropped;
+    }
+
+    private Ring newRing() {
+        Ring ring = new Ring();
+        rings.add(ring);
+        return ring;
+    }
+
+    private synchronized boolean open() {
+        if(out != null) {
+            return true;
+        }
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        } catch (IOException e) {
+            e.printStackTrace();
+            out = null;
+            return false;
+        }
+        writer = new Thread(this::writeLoop, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return true;
+    }
+
+    private void writeLoop() {
+        while(!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            drain();
+        }
+    }
+
+    private synchronized void stop() {
+        if(out == null) {
+            return;
+        }
+        writer.interrupt();
+        drain();
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+
+    private synchronized void drain() {
+        if(out == null) {
+            return;
+        }
+        try {
+            for(Ring r : rings) {
+                r.drainTo(out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Single producer, single consumer ring: the owning thread writes, the trace writer reads under the Trace lock
+    private class Ring {
+        private final long[] slots = new long[RING_EVENTS * 3];
+        private final AtomicLong head = new AtomicLong(); // next event to write to the file
+        private final AtomicLong tail = new AtomicLong(); // next free slot, only the owner moves it
+        private volatile long dropped = 0; // only the owner writes it
+        private long droppedWritten = 0;
+
+        void offer(long time, int event, int node, int a, int b) {
+            long t = tail.get();
+            if(t - head.get() >= RING_EVENTS) {
+                dropped++;
+                return;
+            }
+            int i = (int) (t & (RING_EVENTS - 1)) * 3;
+            slots[i] = time;
+            slots[i + 1] = ((long) event << 32) | (node & 0xffffffffL);
+            slots[i + 2] = ((long) a << 32) | (b & 0xffffffffL);
+            tail.lazySet(t + 1); // publishes the slots
+        }
+
+        void drainTo(DataOutputStream out) throws IOException {
+            long h = head.get();
+            long t = tail.get();
+            for(; h < t; h++) {
+                int i = (int) (h & (RING_EVENTS - 1)) * 3;
+                out.writeLong(slots[i]);
+                out.writeInt((int) (slots[i + 1] >>> 32));
+                out.writeInt((int) slots[i + 1]);
+                out.writeInt((int) (slots[i + 2] >>> 32));
+                out.writeInt((int) slots[i + 2]);
+                written.incrementAndGet();
+            }
+            head.lazySet(t); // hands the slots back to the owner
+            long lost = dropped - droppedWritten;
+            if(lost > 0) {
+                droppedWritten += lost;
+                out.writeLong(Metrics.GLOBAL.now());
+                out.writeInt(TraceEvent.DROPPED.ordinal());
+                out.writeInt(-1);
+                out.writeInt((int) Math.min(lost, Integer.MAX_VALUE));
+                out.writeInt(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+// The events Trace records. The meaning of the two int arguments a and b depends on the event.
+public enum TraceEvent {
+    CREATED(TraceLevel.INFO), // a: degree
+    WAKEUP(TraceLevel.INFO),
+    LEVEL(TraceLevel.INFO), // a: the new fragment level
+    HALT(TraceLevel.INFO),
+    DEFER(TraceLevel.DEBUG), // a: sender, b: MessageType ordinal of the queue
+    POP(TraceLevel.DEBUG), // a: sender, b: MessageType ordinal of the queue
+    SEND(TraceLevel.ALL), // a: receiver, b: MessageType ordinal
+    RECEIVE(TraceLevel.ALL), // a: sender, b: MessageType ordinal
+    DROPPED(TraceLevel.OFF); // a: events lost because a thread's buffer was full, written by the trace itself
+
+    final TraceLevel level;
+
+    TraceEvent(TraceLevel level) {
+        this.level = level;
+    }
+}
@@ -0,0 +1,7 @@
+// How much Trace records, every level includes the ones before it
+public enum TraceLevel {
+    OFF,
+    INFO, // node lifecycle: creation, wakeup, new fragment levels, halt
+    DEBUG, // messages that are deferred and later taken from a queue
+    ALL // every message sent and received
+}
@@ -0,0 +1,10 @@
+// Management interface of Trace, registered as ghs:type=Trace
+public interface TraceMXBean {
+    String getLevel();
+
+    void setLevel(String level);
+
+    long getWritten();
+
+    long getDropped();
+}
@@ -0,0 +1,134 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Turns a binary trace written by Trace into a timeline per node, run with: java TraceReader <trace> [node id ...]
+//
+// Events of a node are printed in time order with the time since the first event of the trace, in ms. Lost events
+// are reported at the end.
+public class TraceReader {
+    private static final TraceEvent[] EVENTS = TraceEvent.values();
+    private static final MessageType[] TYPES = MessageType.values();
+
+    public static class Record {
+        final long time;
+        final TraceEvent event;
+        final int node;
+        final int a;
+        final int b;
+
+        Record(long time, TraceEvent event, int node, int a, int b) {
+            this.time = time;
+            this.event = event;
+            this.node = node;
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    public static List<Record> read(InputStream file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16));
+        if(in.readInt() != Trace.MAGIC) {
+            throw new IOException("Not a trace file");
+        } else if(in.readInt() != Trace.VERSION) {
+            throw new IOException("Unsupported trace version");
+        }
+        List<Record> records = new ArrayList<>();
+        while(true) {
+            long time;
+            try {
+                time = in.readLong();
+            } catch (EOFException e) {
+                return records;
+            }
+            int event = in.readInt();
+            if(event < 0 || event >= EVENTS.length) {
+                throw new IOException("Unknown trace event " + event);
+            }
+            records.add(new Record(time, EVENTS[event], in.readInt(), in.readInt(), in.readInt()));
+        }
+    }
+
+    // Groups the records per node and sorts every node's records on time; threads flush their events in batches, so
+    // the file itself is only ordered per thread
+    public static Map<Integer, List<Record>> timelines(List<Record> records, Set<Integer> only) {
+        Map<Integer, List<Record>> timelines = new TreeMap<>();
+        for(Record r : records) {
+            if(r.event != TraceEvent.DROPPED && (only.isEmpty() || only.contains(r.node))) {
+                timelines.computeIfAbsent(r.node, n -> new ArrayList<>()).add(r);
+            }
+        }
+        for(List<Record> timeline : timelines.values()) {
+            timeline.sort((x, y) -> Long.compare(x.time, y.time));
+        }
+        return timelines;
+    }
+
+    public static String describe(Record r) {
+        switch (r.event) {
+            case CREATED:
+                return "created with " + r.a + " edges";
+            case LEVEL:
+                return "fragment level " + r.a;
+            case DEFER:
+                return "deferred " + type(r.b) + " from " + r.a;
+            case POP:
+                return "took " + type(r.b) + " from " + r.a + " off the queue";
+            case SEND:
+                return "sent " + type(r.b) + " to " + r.a;
+            case RECEIVE:
+                return "handled " + type(r.b) + " from " + r.a;
+            default:
+                return r.event.name().toLowerCase();
+        }
+    }
+
+    private static String type(int ordinal) {
+        return ordinal >= 0 && ordinal < TYPES.length ? TYPES[ordinal].name() : "type " + ordinal;
+    }
+
+    public static void print(List<Record> records, Set<Integer> only, PrintStream out) {
+        long start = Long.MAX_VALUE;
+        long dropped = 0;
+        for(Record r : records) {
+            start = Math.min(start, r.time);
+            if(r.event == TraceEvent.DROPPED) {
+                dropped += r.a;
+            }
+        }
+        for(Map.Entry<Integer, List<Record>> e : timelines(records, only).entrySet()) {
+            out.println("node " + e.getKey());
+            for(Record r : e.getValue()) {
+                out.println(String.format("  %12.3f  %s", (r.time - start) / 1000.0, describe(r)));
+            }
+        }
+        if(dropped > 0) {
+            out.println(dropped + " events were dropped because a trace buffer was full");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.out.println("Usage: TraceReader <trace file> [node id ...]");
+            return;
+        }
+        Set<Integer> only = new HashSet<>();
+        for(int i = 1; i < args.length; i++) {
+            only.add(Integer.parseInt(args[i]));
+        }
+        try (InputStream file = Files.newInputStream(Paths.get(args[0]))) {
+            print(read(file), only, System.out);
+        }
+    }
+}
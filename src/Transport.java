@@ -0,0 +1,18 @@
+import java.util.Collection;
+import java.util.concurrent.Executor;
+
+public interface Transport {
+    // Hands a message to the neighbour 'to'. Messages on the same link (from, to) arrive in the order they were sent.
+    void send(Integer from, Integer to, Message message);
+
+    // Called once when a node starts, so a transport can set up its links to the neighbours up front
+    default void open(Integer nodeId, Collection<Integer> neighbourIds) {}
+
+    // Waits until every message handed to send has left, then stops the threads of the transport
+    default void close() {}
+
+    // Runs the mailboxes of the nodes that use this transport
+    default Executor scheduler() {
+        return Mailbox.SHARED_EXECUTOR;
+    }
+}
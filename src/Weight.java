@@ -1,9 +1,13 @@
 import java.io.Serializable;
 
-public class Weight implements Serializable, Comparable<Weight> {
-    private final Integer weight;
-    private final Integer lowerId;
-    private final Integer higherId;
+// An edge weight with the ids of its end points as tiebreak, so all weights in a graph are distinct.
+// Immutable, so instances are shared instead of copied.
+public final class Weight implements Serializable, Comparable<Weight> {
+    private static final long serialVersionUID = 1L;
+
+    private final int weight;
+    private final int lowerId;
+    private final int higherId;
 
     public static final Weight INFINITE = new Weight(Integer.MAX_VALUE, -1, -1);
 
@@ -13,33 +17,52 @@ public class Weight implements Serializable, Comparable<Weight> {
         this.higherId = high;
     }
 
-    public Weight(Weight weight) {
-        this.weight = weight.weight;
-        this.lowerId = weight.lowerId;
-        this.higherId = weight.higherId;
+    // The weight of the edge itself, without the tiebreak
+    public int value() {
+        return weight;
+    }
+
+    public int lowerId() {
+        return lowerId;
+    }
+
+    public int higherId() {
+        return higherId;
     }
 
     @Override
     public int compareTo(Weight w) {
         if(w == null) {
             throw new NullPointerException("Compared weight is null.");
-        } else if (!weight.equals(w.weight)) {
-            return weight.compareTo(w.weight);
-        } else if (!lowerId.equals(w.lowerId)) {
-            return lowerId.compareTo(w.lowerId);
         }
-        return higherId.compareTo(w.higherId);
+        return compare(weight, lowerId, higherId, w.weight, w.lowerId, w.higherId);
+    }
+
+    // Compares this weight to one given as its fields, without creating a Weight for it
+    public int compareTo(int w, int low, int high) {
+        return compare(weight, lowerId, higherId, w, low, high);
+    }
+
+    // Compares two weights given as their fields, without creating Weight objects
+    public static int compare(int w1, int low1, int high1, int w2, int low2, int high2) {
+        if(w1 != w2) {
+            return Integer.compare(w1, w2);
+        }
+        return Long.compare(ids(low1, high1), ids(low2, high2));
+    }
 
+    // Both ids in one long that orders the same as comparing lowerId first and then higherId
+    private static long ids(int low, int high) {
+        return ((long) low << 32) | ((high ^ Integer.MIN_VALUE) & 0xffffffffL);
     }
 
     @Override
     public boolean equals(Object other) {
-        if(other == null) {
-            return false;
+        if(this == other) {
+            return true;
         } else if (other instanceof Weight) {
-            return weight.equals(((Weight) other).weight) &&
-                    lowerId.equals(((Weight) other).lowerId) &&
-                    higherId.equals(((Weight) other).higherId);
+            Weight w = (Weight) other;
+            return weight == w.weight && lowerId == w.lowerId && higherId == w.higherId;
         }
         return false;
     }
@@ -49,7 +72,13 @@ public class Weight implements Serializable, Comparable<Weight> {
         return "[" + this.weight + "," + this.lowerId + "," + this.higherId + "]";
     }
 
+    @Override
     public int hashCode() {
-        return lowerId.hashCode() + higherId.hashCode() + weight.hashCode();
+        return 31 * (31 * weight + lowerId) + higherId;
+    }
+
+    // Keeps INFINITE canonical when a weight arrives through serialization
+    private Object readResolve() {
+        return this.equals(INFINITE) ? INFINITE : this;
     }
 }
@@ -0,0 +1,118 @@
+import java.nio.ByteBuffer;
+
+// Compact binary form of a Message for NioTransport, written straight into and read straight out of a ByteBuffer.
+//
+// A frame is the type, a flags byte and the node state (ordinal + 1, 0 for none), then the session, the receiver, the
+// sender and the level, the weight and the edge as (weight, lower id, higher id) if their flag is set, and the send
+// time. That is 27 bytes plus 12 per weight. A HELLO frame is its type, a count and that many ids of the nodes a host runs.
+public final class WireCodec {
+    public static final byte HELLO = -1;
+    public static final int MAX_HELLO_IDS = 1024; // longer lists go out as several frames
+    static final int HEADER = 3 + 4 * 4 + 8;
+    private static final int WEIGHT = 3 * 4;
+    private static final int HAS_WEIGHT = 1;
+    private static final int HAS_EDGE = 2;
+    private static final int INFINITE = 4; // the weight is Weight.INFINITE, which is kept canonical
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final NodeState[] STATES = NodeState.values();
+
+    private WireCodec() {}
+
+    public static int size(Message m) {
+        return HEADER + (m.weight != null ? WEIGHT : 0) + (m.edge != null ? WEIGHT : 0);
+    }
+
+    // Writes the frame at the position of out, which must have size(m) bytes left
+    public static void encode(int to, Message m, ByteBuffer out) {
+        int flags = (m.weight != null ? HAS_WEIGHT : 0) | (m.edge != null ? HAS_EDGE : 0) |
+                (m.weight == Weight.INFINITE ? INFINITE : 0);
+        out.put((byte) m.type.ordinal());
+        out.put((byte) flags);
+        out.put((byte) (m.state == null ? 0 : m.state.ordinal() + 1));
+        out.putInt(m.session);
+        out.putInt(to);
+        out.putInt(m.from);
+        out.putInt(m.level);
+        if(m.weight != null) {
+            putWeight(m.weight, out);
+        }
+        if(m.edge != null) {
+            putWeight(m.edge, out);
+        }
+        out.putLong(m.sentAt);
+    }
+
+    public static void encodeHello(int[] ids, int offset, int count, ByteBuffer out) {
+        out.put(HELLO);
+        out.putInt(count);
+        for(int i = offset; i < offset + count; i++) {
+            out.putInt(ids[i]);
+        }
+    }
+
+    public static int helloSize(int count) {
+        return 1 + 4 + 4 * count;
+    }
+
+    // The size of the frame at the position of in, or -1 if in does not hold enough of it to tell
+    public static int frameSize(ByteBuffer in) {
+        int p = in.position();
+        if(in.remaining() < 5) {
+            return -1;
+        } else if(in.get(p) == HELLO) {
+            return helloSize(in.getInt(p + 1));
+        }
+        int flags = in.get(p + 1);
+        return HEADER + ((flags & HAS_WEIGHT) != 0 ? WEIGHT : 0) + ((flags & HAS_EDGE) != 0 ? WEIGHT : 0);
+    }
+
+    public static boolean isHello(ByteBuffer in) {
+        return in.get(in.position()) == HELLO;
+    }
+
+    // The receiver of the frame at the position of in, without reading it
+    public static int receiver(ByteBuffer in) {
+        return in.getInt(in.position() + 7);
+    }
+
+    // Reads one whole frame; the caller checked frameSize
+    public static Message decode(ByteBuffer in) {
+        MessageType type = TYPES[in.get()];
+        int flags = in.get();
+        int state = in.get();
+        int session = in.getInt();
+        in.getInt(); // the receiver, see receiver
+        int from = in.getInt();
+        int level = in.getInt();
+        Weight weight = null;
+        if((flags & INFINITE) != 0) {
+            in.position(in.position() + WEIGHT);
+            weight = Weight.INFINITE;
+        } else if((flags & HAS_WEIGHT) != 0) {
+            weight = getWeight(in);
+        }
+        Weight edge = (flags & HAS_EDGE) != 0 ? getWeight(in) : null;
+        return Message.decoded(session, type, from, level, weight, state == 0 ? null : STATES[state - 1], edge,
+                in.getLong());
+    }
+
+    // Reads the ids of a whole HELLO frame into ids, which must be large enough, and returns how many there were
+    public static int decodeHello(ByteBuffer in, int[] ids) {
+        in.get();
+        int count = in.getInt();
+        for(int i = 0; i < count; i++) {
+            ids[i] = in.getInt();
+        }
+        return count;
+    }
+
+    static void putWeight(Weight w, ByteBuffer out) {
+        out.putInt(w.value());
+        out.putInt(w.lowerId());
+        out.putInt(w.higherId());
+    }
+
+    static Weight getWeight(ByteBuffer in) {
+        return new Weight(in.getInt(), in.getInt(), in.getInt());
+    }
+}